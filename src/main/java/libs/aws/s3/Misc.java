@@ -2,14 +2,18 @@ package libs.aws.s3;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.AccessControlList;
+import com.amazonaws.services.s3.model.BucketAccelerateConfiguration;
+import com.amazonaws.services.s3.model.BucketAccelerateStatus;
 import com.amazonaws.services.s3.model.BucketCrossOriginConfiguration;
 import com.amazonaws.services.s3.model.BucketLifecycleConfiguration;
 import com.amazonaws.services.s3.model.BucketLifecycleConfiguration.Transition;
+import com.amazonaws.services.s3.model.BucketVersioningConfiguration;
 import com.amazonaws.services.s3.model.CORSRule;
 import com.amazonaws.services.s3.model.CORSRule.AllowedMethods;
 import com.amazonaws.services.s3.model.CanonicalGrantee;
@@ -36,9 +40,11 @@ import com.amazonaws.services.s3.model.lifecycle.LifecycleTagPredicate;
  * 
  * 1. Bucket Create/Delete- {@link Misc#bucketOperations(AmazonS3)}
  * 
- * 2. Lifecycle Creation and Deletion {@link Misc#lifeCycleOperations(AmazonS3)}
+ * 2. Lifecycle Creation and Deletion {@link Misc#lifeCycleOperations(AmazonS3)}.
+ * To build rules from actual object size/age see {@link S3LifecycleAdvisor}
  * 
- * 3. ACL {@link Misc#aclOperations(AmazonS3)}
+ * 3. ACL {@link Misc#aclOperations(AmazonS3)}. To apply same ACL, CORS,
+ * lifecycle etc. to many buckets see {@link Misc#bucketConfigOperations(AmazonS3)}
  * 
  * 4.<i> Acceleration - Acceleration can be used to optimize speed of transfer.
  * When enabled it uses cloud front (edge) locations to transfer object from/to
@@ -151,7 +157,13 @@ public class Misc {
 		// <-
 
 		// -> Bucket Delete
-		s3Client.deleteBucket("my-bucket-name-appear-here");
+		// bucket must be empty (all versions and delete markers too) before
+		// delete, batched delete removes up to 1000 keys per request
+		S3BulkDeleteResponse deleteResponse = new S3BulkDeleteHandler().emptyBucket(s3Client,
+				"my-bucket-name-appear-here");
+		if (deleteResponse.isSuccess()) {
+			s3Client.deleteBucket("my-bucket-name-appear-here");
+		}
 
 		// list buckets
 		s3Client.setRegion(Region.getRegion(Regions.US_EAST_1));
@@ -188,6 +200,10 @@ public class Misc {
 
 		BucketLifecycleConfiguration configuration = new BucketLifecycleConfiguration()
 				.withRules(Arrays.asList(rule1, rule2));
+		// check overlapping rules before setting them, see URL at end
+		for (String overlap : S3LifecycleAdvisor.findOverlappingRules(configuration)) {
+			System.out.println(overlap);
+		}
 		SetBucketLifecycleConfigurationRequest lifeCycleRequest = new SetBucketLifecycleConfigurationRequest(bucket,
 				configuration);
 
@@ -206,6 +222,14 @@ public class Misc {
 		// look into following URL for conflicting/overlapping rules
 		// https://docs.aws.amazon.com/AmazonS3/latest/dev/lifecycle-configuration-examples.html#lifecycle-config-conceptual-ex5
 
+		// rules proposed from actual data (age/size per prefix) instead of
+		// hard coded rules, inventory report can be used for big buckets
+		S3LifecycleAdvisor advisor = new S3LifecycleAdvisor();
+		advisor.analyzeBucket(s3Client, bucket, null);
+		BucketLifecycleConfiguration proposed = advisor.proposeConfiguration();
+		System.out.println(advisor.getPrefixStats().values());
+		System.out.println(S3LifecycleAdvisor.findOverlappingRules(proposed));
+
 	}
 
 	public void aclOperations(AmazonS3 s3Client) {
@@ -295,4 +319,33 @@ public class Misc {
 		// refresh AWS console page, if it new rules does not show up :-)
 	}
 
+	/**
+	 * Snapshot, diff and apply configuration of many buckets. Only settings
+	 * which differ from desired are written
+	 * 
+	 * @param s3Client
+	 */
+	public void bucketConfigOperations(AmazonS3 s3Client) {
+		List<String> buckets = Arrays.asList(bucket + "1", bucket + "2", bucket + "3");
+
+		// desired configuration, null settings (ACL here) are left as it is
+		S3BucketConfig desired = new S3BucketConfig();
+		desired.setVersioning(new BucketVersioningConfiguration(BucketVersioningConfiguration.ENABLED));
+		desired.setAcceleration(new BucketAccelerateConfiguration(BucketAccelerateStatus.Suspended));
+		CORSRule corsRule = new CORSRule().withId("post from amazon")
+				.withAllowedMethods(Arrays.asList(AllowedMethods.POST)).withAllowedOrigins(Arrays.asList("amazon.com"));
+		desired.setCors(new BucketCrossOriginConfiguration().withRules(corsRule));
+		// empty rules delete lifecycle configuration
+		desired.setLifecycle(
+				new BucketLifecycleConfiguration().withRules(new ArrayList<BucketLifecycleConfiguration.Rule>()));
+
+		S3BucketConfigEngine engine = new S3BucketConfigEngine();
+		engine.snapshot(s3Client, buckets);
+		List<S3BucketConfigChange> changes = engine.diff(desired, buckets);
+		System.out.println("Changes " + changes);
+		for (S3BucketConfigChange failed : engine.apply(s3Client, changes)) {
+			System.out.println("Failed " + failed);
+		}
+	}
+
 }
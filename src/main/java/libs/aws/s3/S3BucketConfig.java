@@ -0,0 +1,154 @@
+package libs.aws.s3;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import com.amazonaws.services.s3.model.AccessControlList;
+import com.amazonaws.services.s3.model.BucketAccelerateConfiguration;
+import com.amazonaws.services.s3.model.BucketCrossOriginConfiguration;
+import com.amazonaws.services.s3.model.BucketLifecycleConfiguration;
+import com.amazonaws.services.s3.model.BucketVersioningConfiguration;
+
+/**
+ * Configuration of a bucket (ACL, CORS, lifecycle, versioning and
+ * acceleration), see {@link S3BucketConfigEngine}.
+ *
+ * As snapshot - holds configuration read from S3, {@link S3BucketConfig#isLoaded(Setting)}
+ * tells which settings were read successfully (missing CORS/lifecycle is
+ * loaded as null).
+ *
+ * As desired configuration - null setting means setting is not managed and
+ * left as it is. Empty CORS/lifecycle rules mean configuration is deleted.
+ *
+ * @author Kuldeep
+ *
+ */
+public class S3BucketConfig {
+
+	/**
+	 * Settings managed by {@link S3BucketConfigEngine}
+	 */
+	public enum Setting {
+		ACL, CORS, LIFECYCLE, VERSIONING, ACCELERATION
+	}
+
+	private String bucket;
+
+	private AccessControlList acl;
+
+	private BucketCrossOriginConfiguration cors;
+
+	private BucketLifecycleConfiguration lifecycle;
+
+	private BucketVersioningConfiguration versioning;
+
+	private BucketAccelerateConfiguration acceleration;
+
+	/**
+	 * Settings read from S3 (snapshot only)
+	 */
+	private Set<Setting> loaded = EnumSet.noneOf(Setting.class);
+
+	/**
+	 * Errors while reading settings (snapshot only)
+	 */
+	private List<String> errors = new ArrayList<String>();
+
+	public S3BucketConfig() {
+	}
+
+	public S3BucketConfig(String bucket) {
+		this.bucket = bucket;
+	}
+
+	/**
+	 * @return value of given setting
+	 */
+	public Object get(Setting setting) {
+		switch (setting) {
+		case ACL:
+			return acl;
+		case CORS:
+			return cors;
+		case LIFECYCLE:
+			return lifecycle;
+		case VERSIONING:
+			return versioning;
+		case ACCELERATION:
+			return acceleration;
+		default:
+			throw new IllegalArgumentException("Unknown setting " + setting);
+		}
+	}
+
+	public String getBucket() {
+		return bucket;
+	}
+
+	public void setBucket(String bucket) {
+		this.bucket = bucket;
+	}
+
+	public AccessControlList getAcl() {
+		return acl;
+	}
+
+	public void setAcl(AccessControlList acl) {
+		this.acl = acl;
+	}
+
+	public BucketCrossOriginConfiguration getCors() {
+		return cors;
+	}
+
+	public void setCors(BucketCrossOriginConfiguration cors) {
+		this.cors = cors;
+	}
+
+	public BucketLifecycleConfiguration getLifecycle() {
+		return lifecycle;
+	}
+
+	public void setLifecycle(BucketLifecycleConfiguration lifecycle) {
+		this.lifecycle = lifecycle;
+	}
+
+	public BucketVersioningConfiguration getVersioning() {
+		return versioning;
+	}
+
+	public void setVersioning(BucketVersioningConfiguration versioning) {
+		this.versioning = versioning;
+	}
+
+	public BucketAccelerateConfiguration getAcceleration() {
+		return acceleration;
+	}
+
+	public void setAcceleration(BucketAccelerateConfiguration acceleration) {
+		this.acceleration = acceleration;
+	}
+
+	public synchronized boolean isLoaded(Setting setting) {
+		return loaded.contains(setting);
+	}
+
+	synchronized void setLoaded(Setting setting) {
+		loaded.add(setting);
+	}
+
+	public synchronized List<String> getErrors() {
+		return new ArrayList<String>(errors);
+	}
+
+	synchronized void addError(String error) {
+		errors.add(error);
+	}
+
+	@Override
+	public String toString() {
+		return "S3BucketConfig [bucket=" + bucket + ", loaded=" + loaded + ", errors=" + errors + "]";
+	}
+}
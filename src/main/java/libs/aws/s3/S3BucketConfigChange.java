@@ -0,0 +1,60 @@
+package libs.aws.s3;
+
+import libs.aws.s3.S3BucketConfig.Setting;
+
+/**
+ * Single setting of a bucket which differs from desired configuration, see
+ * {@link S3BucketConfigEngine#diff(S3BucketConfig, java.util.Collection)}
+ *
+ * @author Kuldeep
+ *
+ */
+public class S3BucketConfigChange {
+
+	private final String bucket;
+
+	private final Setting setting;
+
+	/**
+	 * Desired value, type depends on setting (AccessControlList,
+	 * BucketCrossOriginConfiguration etc.)
+	 */
+	private final Object value;
+
+	/**
+	 * Set when apply failed
+	 */
+	private volatile Exception error;
+
+	public S3BucketConfigChange(String bucket, Setting setting, Object value) {
+		this.bucket = bucket;
+		this.setting = setting;
+		this.value = value;
+	}
+
+	public String getBucket() {
+		return bucket;
+	}
+
+	public Setting getSetting() {
+		return setting;
+	}
+
+	public Object getValue() {
+		return value;
+	}
+
+	public Exception getError() {
+		return error;
+	}
+
+	void setError(Exception error) {
+		this.error = error;
+	}
+
+	@Override
+	public String toString() {
+		return "S3BucketConfigChange [bucket=" + bucket + ", setting=" + setting
+				+ (error == null ? "" : ", error=" + error.getMessage()) + "]";
+	}
+}
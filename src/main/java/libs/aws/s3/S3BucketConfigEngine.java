@@ -0,0 +1,422 @@
+package libs.aws.s3;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AccessControlList;
+import com.amazonaws.services.s3.model.BucketAccelerateConfiguration;
+import com.amazonaws.services.s3.model.BucketAccelerateStatus;
+import com.amazonaws.services.s3.model.BucketCrossOriginConfiguration;
+import com.amazonaws.services.s3.model.BucketLifecycleConfiguration;
+import com.amazonaws.services.s3.model.BucketLifecycleConfiguration.NoncurrentVersionTransition;
+import com.amazonaws.services.s3.model.BucketLifecycleConfiguration.Rule;
+import com.amazonaws.services.s3.model.BucketLifecycleConfiguration.Transition;
+import com.amazonaws.services.s3.model.BucketVersioningConfiguration;
+import com.amazonaws.services.s3.model.CORSRule;
+import com.amazonaws.services.s3.model.EmailAddressGrantee;
+import com.amazonaws.services.s3.model.Grant;
+import com.amazonaws.services.s3.model.SetBucketAclRequest;
+import com.amazonaws.services.s3.model.SetBucketVersioningConfigurationRequest;
+
+import libs.aws.s3.S3BucketConfig.Setting;
+import libs.aws.s3.util.RateLimiter;
+
+/**
+ * Manages configuration of many buckets. Instead of read-modify-write per
+ * bucket like {@link Misc#aclOperations(AmazonS3)}, configuration is handled in
+ * 3 steps -
+ *
+ * 1. {@link S3BucketConfigEngine#snapshot(AmazonS3, Collection)} - reads ACL,
+ * CORS, lifecycle, versioning and acceleration of all buckets in parallel and
+ * keeps them as local snapshot
+ *
+ * 2. {@link S3BucketConfigEngine#diff(S3BucketConfig, Collection)} - compares
+ * desired configuration with snapshot locally (no S3 call), only settings which
+ * differ become {@link S3BucketConfigChange}
+ *
+ * 3. {@link S3BucketConfigEngine#apply(AmazonS3, List)} - writes only changed
+ * settings in parallel, snapshot is updated with applied values
+ *
+ * All S3 calls go through one {@link RateLimiter}. Buckets can be in any
+ * region, build client with forceGlobalBucketAccessEnabled for such case.
+ *
+ * Note - Lifecycle rules and CORS rules are compared in order and with rule
+ * ids, give ids to desired rules otherwise S3 generated ids always differ.
+ * ACL grantees are compared by type and id, S3 returns every account as
+ * canonical user, so desired ACL for diff should use
+ * {@link com.amazonaws.services.s3.model.CanonicalGrantee} (email grantee is
+ * rejected by diff, it would never match).
+ *
+ * @author Kuldeep
+ *
+ */
+public class S3BucketConfigEngine {
+
+	private final int threads;
+
+	private final RateLimiter rateLimiter;
+
+	private final ConcurrentMap<String, S3BucketConfig> snapshots = new ConcurrentHashMap<String, S3BucketConfig>();
+
+	/**
+	 * 20 threads and 50 S3 calls per second
+	 */
+	public S3BucketConfigEngine() {
+		this(20, 50);
+	}
+
+	/**
+	 * @param threads
+	 *            - buckets/changes processed in parallel
+	 * @param requestsPerSecond
+	 *            - max S3 calls per second, zero or negative for no limit
+	 */
+	public S3BucketConfigEngine(int threads, double requestsPerSecond) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads should be at least 1");
+		}
+		this.threads = threads;
+		this.rateLimiter = new RateLimiter(requestsPerSecond);
+	}
+
+	/**
+	 * Reads configuration of given buckets into snapshot. Setting which can't
+	 * be read is recorded in {@link S3BucketConfig#getErrors()} and ignored by
+	 * diff
+	 *
+	 * @param s3Client
+	 * @param buckets
+	 * @return snapshot of given buckets
+	 * @throws AmazonClientException
+	 */
+	public Map<String, S3BucketConfig> snapshot(final AmazonS3 s3Client, Collection<String> buckets)
+			throws AmazonClientException {
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(buckets.size());
+		for (final String bucket : buckets) {
+			tasks.add(new Callable<Void>() {
+
+				@Override
+				public Void call() throws Exception {
+					snapshots.put(bucket, load(s3Client, bucket));
+					return null;
+				}
+			});
+		}
+		runAll(tasks);
+		Map<String, S3BucketConfig> result = new LinkedHashMap<String, S3BucketConfig>();
+		for (String bucket : buckets) {
+			result.put(bucket, snapshots.get(bucket));
+		}
+		return result;
+	}
+
+	/**
+	 * @return snapshot of bucket or null if not taken
+	 */
+	public S3BucketConfig getSnapshot(String bucket) {
+		return snapshots.get(bucket);
+	}
+
+	private S3BucketConfig load(AmazonS3 s3Client, String bucket) throws InterruptedException {
+		S3BucketConfig config = new S3BucketConfig(bucket);
+		for (Setting setting : Setting.values()) {
+			rateLimiter.acquire();
+			try {
+				switch (setting) {
+				case ACL:
+					config.setAcl(s3Client.getBucketAcl(bucket));
+					break;
+				case CORS:
+					config.setCors(s3Client.getBucketCrossOriginConfiguration(bucket));
+					break;
+				case LIFECYCLE:
+					config.setLifecycle(s3Client.getBucketLifecycleConfiguration(bucket));
+					break;
+				case VERSIONING:
+					config.setVersioning(s3Client.getBucketVersioningConfiguration(bucket));
+					break;
+				case ACCELERATION:
+					config.setAcceleration(s3Client.getBucketAccelerateConfiguration(bucket));
+					break;
+				}
+				config.setLoaded(setting);
+			} catch (AmazonClientException e) {
+				config.addError(setting + ": " + e.getMessage());
+			}
+		}
+		return config;
+	}
+
+	/**
+	 * Compares same desired configuration with snapshot of every given bucket
+	 *
+	 * @param desired
+	 *            - null settings are not compared
+	 * @param buckets
+	 * @return changes needed, empty if all buckets match
+	 * @throws IllegalStateException
+	 *             - if a bucket has no snapshot
+	 * @throws IllegalArgumentException
+	 *             - if desired ACL has an email grantee
+	 */
+	public List<S3BucketConfigChange> diff(S3BucketConfig desired, Collection<String> buckets) {
+		List<S3BucketConfigChange> changes = new ArrayList<S3BucketConfigChange>();
+		for (String bucket : buckets) {
+			diff(bucket, desired, changes);
+		}
+		return changes;
+	}
+
+	/**
+	 * Compares desired configuration per bucket with snapshot
+	 *
+	 * @param desired
+	 *            - desired configuration by bucket
+	 * @return changes needed, empty if all buckets match
+	 * @throws IllegalStateException
+	 *             - if a bucket has no snapshot
+	 * @throws IllegalArgumentException
+	 *             - if desired ACL has an email grantee
+	 */
+	public List<S3BucketConfigChange> diff(Map<String, S3BucketConfig> desired) {
+		List<S3BucketConfigChange> changes = new ArrayList<S3BucketConfigChange>();
+		for (Map.Entry<String, S3BucketConfig> entry : desired.entrySet()) {
+			diff(entry.getKey(), entry.getValue(), changes);
+		}
+		return changes;
+	}
+
+	private void diff(String bucket, S3BucketConfig desired, List<S3BucketConfigChange> changes) {
+		S3BucketConfig actual = snapshots.get(bucket);
+		if (actual == null) {
+			throw new IllegalStateException("No snapshot of bucket " + bucket + ", take snapshot first");
+		}
+		AccessControlList acl = (AccessControlList) desired.get(Setting.ACL);
+		if (acl != null) {
+			for (Grant grant : acl.getGrantsAsList()) {
+				if (grant.getGrantee() instanceof EmailAddressGrantee) {
+					// S3 returns canonical id instead, such ACL always differs
+					throw new IllegalArgumentException("Email grantee " + grant.getGrantee().getIdentifier()
+							+ " of bucket " + bucket + " can't be compared, use canonical user id");
+				}
+			}
+		}
+		for (Setting setting : Setting.values()) {
+			Object value = desired.get(setting);
+			if (value == null || !actual.isLoaded(setting)) {
+				continue;
+			}
+			if (!canonical(setting, value).equals(canonical(setting, actual.get(setting)))) {
+				changes.add(new S3BucketConfigChange(bucket, setting, value));
+			}
+		}
+	}
+
+	/**
+	 * Applies changes in parallel. Snapshot is updated for every applied
+	 * change
+	 *
+	 * @param s3Client
+	 * @param changes
+	 * @return failed changes (see {@link S3BucketConfigChange#getError()}),
+	 *         empty if all applied
+	 * @throws AmazonClientException
+	 * @throws IllegalStateException
+	 *             - if a bucket has no snapshot, nothing is applied then
+	 */
+	public List<S3BucketConfigChange> apply(final AmazonS3 s3Client, List<S3BucketConfigChange> changes)
+			throws AmazonClientException {
+		for (S3BucketConfigChange change : changes) {
+			if (!snapshots.containsKey(change.getBucket())) {
+				throw new IllegalStateException(
+						"No snapshot of bucket " + change.getBucket() + ", take snapshot first");
+			}
+		}
+		final List<S3BucketConfigChange> failed = Collections
+				.synchronizedList(new ArrayList<S3BucketConfigChange>());
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(changes.size());
+		for (final S3BucketConfigChange change : changes) {
+			tasks.add(new Callable<Void>() {
+
+				@Override
+				public Void call() throws Exception {
+					rateLimiter.acquire();
+					try {
+						apply(s3Client, change);
+					} catch (AmazonClientException e) {
+						change.setError(e);
+						failed.add(change);
+					}
+					return null;
+				}
+			});
+		}
+		runAll(tasks);
+		return new ArrayList<S3BucketConfigChange>(failed);
+	}
+
+	private void apply(AmazonS3 s3Client, S3BucketConfigChange change)
+			throws AmazonServiceException, AmazonClientException {
+		String bucket = change.getBucket();
+		S3BucketConfig snapshot = snapshots.get(bucket);
+		switch (change.getSetting()) {
+		case ACL:
+			AccessControlList acl = (AccessControlList) change.getValue();
+			s3Client.setBucketAcl(new SetBucketAclRequest(bucket, acl));
+			snapshot.setAcl(acl);
+			break;
+		case CORS:
+			BucketCrossOriginConfiguration cors = (BucketCrossOriginConfiguration) change.getValue();
+			if (cors.getRules() == null || cors.getRules().isEmpty()) {
+				s3Client.deleteBucketCrossOriginConfiguration(bucket);
+				snapshot.setCors(null);
+			} else {
+				s3Client.setBucketCrossOriginConfiguration(bucket, cors);
+				snapshot.setCors(cors);
+			}
+			break;
+		case LIFECYCLE:
+			BucketLifecycleConfiguration lifecycle = (BucketLifecycleConfiguration) change.getValue();
+			if (lifecycle.getRules() == null || lifecycle.getRules().isEmpty()) {
+				s3Client.deleteBucketLifecycleConfiguration(bucket);
+				snapshot.setLifecycle(null);
+			} else {
+				s3Client.setBucketLifecycleConfiguration(bucket, lifecycle);
+				snapshot.setLifecycle(lifecycle);
+			}
+			break;
+		case VERSIONING:
+			BucketVersioningConfiguration versioning = (BucketVersioningConfiguration) change.getValue();
+			if (BucketVersioningConfiguration.OFF.equals(versioning.getStatus())) {
+				// once enabled, versioning can only be suspended
+				versioning = new BucketVersioningConfiguration(BucketVersioningConfiguration.SUSPENDED);
+			}
+			s3Client.setBucketVersioningConfiguration(new SetBucketVersioningConfigurationRequest(bucket, versioning));
+			snapshot.setVersioning(versioning);
+			break;
+		case ACCELERATION:
+			BucketAccelerateConfiguration acceleration = (BucketAccelerateConfiguration) change.getValue();
+			s3Client.setBucketAccelerateConfiguration(bucket, acceleration);
+			snapshot.setAcceleration(acceleration);
+			break;
+		}
+	}
+
+	private void runAll(List<Callable<Void>> tasks) throws AmazonClientException {
+		if (tasks.isEmpty()) {
+			return;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, tasks.size()));
+		try {
+			for (Future<Void> future : executor.invokeAll(tasks)) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AmazonClientException("Bucket configuration interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new AmazonClientException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Converts setting to comparable string. SDK model classes (except ACL)
+	 * don't implement equals, and some values have equivalent forms (no CORS
+	 * vs empty CORS, versioning Off vs Suspended)
+	 */
+	static String canonical(Setting setting, Object value) {
+		StringBuilder text = new StringBuilder();
+		switch (setting) {
+		case ACL:
+			AccessControlList acl = (AccessControlList) value;
+			if (acl == null) {
+				break;
+			}
+			text.append("owner=").append(acl.getOwner() == null ? null : acl.getOwner().getId());
+			List<String> grants = new ArrayList<String>();
+			for (Grant grant : acl.getGrantsAsList()) {
+				grants.add(grant.getGrantee().getTypeIdentifier() + ":" + grant.getGrantee().getIdentifier() + ":"
+						+ grant.getPermission());
+			}
+			Collections.sort(grants);
+			text.append(grants);
+			break;
+		case CORS:
+			BucketCrossOriginConfiguration cors = (BucketCrossOriginConfiguration) value;
+			if (cors == null || cors.getRules() == null) {
+				break;
+			}
+			for (CORSRule rule : cors.getRules()) {
+				text.append("[id=").append(rule.getId()).append(",methods=").append(rule.getAllowedMethods())
+						.append(",origins=").append(rule.getAllowedOrigins()).append(",headers=")
+						.append(rule.getAllowedHeaders()).append(",exposed=").append(rule.getExposedHeaders())
+						.append(",maxAge=").append(rule.getMaxAgeSeconds()).append("]");
+			}
+			break;
+		case LIFECYCLE:
+			BucketLifecycleConfiguration lifecycle = (BucketLifecycleConfiguration) value;
+			if (lifecycle == null || lifecycle.getRules() == null) {
+				break;
+			}
+			for (Rule rule : lifecycle.getRules()) {
+				text.append("[id=").append(rule.getId()).append(",status=").append(rule.getStatus())
+						.append(",scope=").append(S3LifecycleAdvisor.RuleScope.of(rule)).append(",expiration=")
+						.append(rule.getExpirationInDays()).append("/").append(rule.getExpirationDate())
+						.append("/").append(rule.isExpiredObjectDeleteMarker()).append(",noncurrentExpiration=")
+						.append(rule.getNoncurrentVersionExpirationInDays());
+				if (rule.getTransitions() != null) {
+					for (Transition transition : rule.getTransitions()) {
+						text.append(",transition=").append(transition.getDays()).append("/")
+								.append(transition.getDate()).append("/").append(transition.getStorageClassAsString());
+					}
+				}
+				if (rule.getNoncurrentVersionTransitions() != null) {
+					for (NoncurrentVersionTransition transition : rule.getNoncurrentVersionTransitions()) {
+						text.append(",noncurrentTransition=").append(transition.getDays()).append("/")
+								.append(transition.getStorageClassAsString());
+					}
+				}
+				if (rule.getAbortIncompleteMultipartUpload() != null) {
+					text.append(",abortIncomplete=")
+							.append(rule.getAbortIncompleteMultipartUpload().getDaysAfterInitiation());
+				}
+				text.append("]");
+			}
+			break;
+		case VERSIONING:
+			BucketVersioningConfiguration versioning = (BucketVersioningConfiguration) value;
+			String status = versioning == null ? null : versioning.getStatus();
+			if (status == null || BucketVersioningConfiguration.OFF.equals(status)) {
+				status = BucketVersioningConfiguration.SUSPENDED;
+			}
+			text.append(status);
+			break;
+		case ACCELERATION:
+			BucketAccelerateConfiguration acceleration = (BucketAccelerateConfiguration) value;
+			String accelerateStatus = acceleration == null ? null : acceleration.getStatus();
+			text.append(accelerateStatus == null ? BucketAccelerateStatus.Suspended.toString() : accelerateStatus);
+			break;
+		}
+		return text.toString();
+	}
+
+}
@@ -0,0 +1,361 @@
+package libs.aws.s3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.ListVersionsRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
+import com.amazonaws.services.s3.model.S3VersionSummary;
+import com.amazonaws.services.s3.model.VersionListing;
+
+import libs.aws.s3.util.RateLimiter;
+
+/**
+ * Deletes many objects using batched DeleteObjects (multi object delete)
+ * requests. Single DeleteObjects request can carry up to
+ * {@link S3BulkDeleteHandler#MAX_KEYS_PER_REQUEST} keys, so it is ~1000 times
+ * less requests than deleting keys one by one.
+ *
+ * Listing is streamed (objects are listed in parallel by
+ * {@link S3ListingEngine}, versions page by page) and sent in batches to worker
+ * threads, so memory usage does not depend on number of objects in bucket.
+ * Number of batches waiting for a worker is bounded as well. Requests are
+ * spread using {@link RateLimiter} and keys which failed in a batch with a
+ * transient error (SlowDown, InternalError, ServiceUnavailable) are retried
+ * with back off, other key errors are reported without retry.
+ *
+ * A bucket can only be deleted when it is empty (including all versions and
+ * delete markers when versioning was ever enabled), use
+ * {@link S3BulkDeleteHandler#emptyBucket(AmazonS3, String)} before
+ * {@link AmazonS3#deleteBucket(String)}
+ *
+ * @author Kuldeep
+ *
+ */
+public class S3BulkDeleteHandler {
+
+	/**
+	 * S3 limit of keys in single DeleteObjects request
+	 */
+	public final static int MAX_KEYS_PER_REQUEST = 1000;
+
+	/**
+	 * Base wait before retrying failed keys, doubled on every attempt
+	 */
+	private final static long RETRY_BASE_WAIT_MILLIS = 100;
+
+	/**
+	 * Per key error codes which are retried, others (AccessDenied etc.) are
+	 * reported right away
+	 */
+	private final static Set<String> RETRYABLE_ERROR_CODES = new HashSet<String>(
+			Arrays.asList("SlowDown", "InternalError", "ServiceUnavailable"));
+
+	/**
+	 * Number of DeleteObjects requests running in parallel
+	 */
+	private final int threads;
+
+	/**
+	 * Max number of retries for failed keys of a batch
+	 */
+	private final int maxRetries;
+
+	/**
+	 * Limits DeleteObjects requests per second (all threads together)
+	 */
+	private final RateLimiter rateLimiter;
+
+	private final S3ListingEngine listingEngine = new S3ListingEngine();
+
+	/**
+	 * 10 threads, 50 requests per second (50,000 keys/second) and 5 retries
+	 */
+	public S3BulkDeleteHandler() {
+		this(10, 50, 5);
+	}
+
+	/**
+	 * @param threads
+	 *            - parallel DeleteObjects requests
+	 * @param requestsPerSecond
+	 *            - max DeleteObjects requests per second, zero or negative
+	 *            for no limit
+	 * @param maxRetries
+	 *            - retries for keys failed in a batch
+	 */
+	public S3BulkDeleteHandler(int threads, double requestsPerSecond, int maxRetries) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads should be at least 1");
+		}
+		this.threads = threads;
+		this.maxRetries = maxRetries;
+		this.rateLimiter = new RateLimiter(requestsPerSecond);
+	}
+
+	/**
+	 * Deletes everything from bucket, all objects, all versions and delete
+	 * markers. After this call bucket can be deleted
+	 *
+	 * @param s3Client
+	 * @param bucket
+	 * @return {@link S3BulkDeleteResponse}
+	 * @throws AmazonServiceException
+	 * @throws AmazonClientException
+	 */
+	public S3BulkDeleteResponse emptyBucket(AmazonS3 s3Client, String bucket)
+			throws AmazonServiceException, AmazonClientException {
+		return deletePrefix(s3Client, bucket, null, true);
+	}
+
+	/**
+	 * Deletes all objects which start with given prefix
+	 *
+	 * @param s3Client
+	 * @param bucket
+	 * @param prefix
+	 *            - key prefix, null or empty for whole bucket
+	 * @param allVersions
+	 *            - true to delete all versions and delete markers (permanent
+	 *            delete). When false, only current objects are deleted, which
+	 *            on a versioned bucket just adds delete markers
+	 * @return {@link S3BulkDeleteResponse}
+	 * @throws AmazonServiceException
+	 * @throws AmazonClientException
+	 */
+	public S3BulkDeleteResponse deletePrefix(AmazonS3 s3Client, String bucket, String prefix, boolean allVersions)
+			throws AmazonServiceException, AmazonClientException {
+		if (allVersions) {
+			return deleteBatches(s3Client, bucket, new VersionBatchIterator(s3Client, bucket, prefix));
+		}
+		// current objects, listed in parallel
+		final S3ListingIterator objects = listingEngine.list(s3Client, bucket, prefix, false);
+		try {
+			return deleteObjects(s3Client, bucket, new Iterator<KeyVersion>() {
+
+				@Override
+				public boolean hasNext() {
+					return objects.hasNext();
+				}
+
+				@Override
+				public KeyVersion next() {
+					return new KeyVersion(objects.next().getKey());
+				}
+			});
+		} finally {
+			objects.close();
+		}
+	}
+
+	/**
+	 * Deletes given keys, keys are grouped into batches of
+	 * {@link S3BulkDeleteHandler#MAX_KEYS_PER_REQUEST}
+	 *
+	 * @param s3Client
+	 * @param bucket
+	 * @param keys
+	 *            - keys to delete, version can be null
+	 * @return {@link S3BulkDeleteResponse}
+	 * @throws AmazonServiceException
+	 * @throws AmazonClientException
+	 */
+	public S3BulkDeleteResponse deleteObjects(AmazonS3 s3Client, String bucket, final Iterator<KeyVersion> keys)
+			throws AmazonServiceException, AmazonClientException {
+		return deleteBatches(s3Client, bucket, new Iterator<List<KeyVersion>>() {
+
+			@Override
+			public boolean hasNext() {
+				return keys.hasNext();
+			}
+
+			@Override
+			public List<KeyVersion> next() {
+				List<KeyVersion> batch = new ArrayList<KeyVersion>(MAX_KEYS_PER_REQUEST);
+				while (keys.hasNext() && batch.size() < MAX_KEYS_PER_REQUEST) {
+					batch.add(keys.next());
+				}
+				return batch;
+			}
+		});
+	}
+
+	/**
+	 * Sends batches to worker threads. At most 2 batches per thread wait in
+	 * queue, so listing does not run far ahead of deletes
+	 */
+	private S3BulkDeleteResponse deleteBatches(final AmazonS3 s3Client, final String bucket,
+			Iterator<List<KeyVersion>> batches) throws AmazonServiceException, AmazonClientException {
+		final S3BulkDeleteResponse response = new S3BulkDeleteResponse();
+		final AtomicReference<AmazonClientException> failure = new AtomicReference<AmazonClientException>();
+		final Semaphore queued = new Semaphore(threads * 2);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			while (failure.get() == null && batches.hasNext()) {
+				final List<KeyVersion> batch = batches.next();
+				if (batch.isEmpty()) {
+					continue;
+				}
+				queued.acquire();
+				executor.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						try {
+							if (failure.get() == null) {
+								deleteBatch(s3Client, bucket, batch, response);
+							}
+						} catch (AmazonClientException e) {
+							failure.compareAndSet(null, e);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							failure.compareAndSet(null, new AmazonClientException("Bulk delete interrupted", e));
+						} finally {
+							queued.release();
+						}
+					}
+				});
+			}
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AmazonClientException("Bulk delete interrupted", e);
+		} finally {
+			executor.shutdownNow();
+		}
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+		return response;
+	}
+
+	/**
+	 * Deletes single batch, retries only keys which failed with transient error
+	 */
+	private void deleteBatch(AmazonS3 s3Client, String bucket, List<KeyVersion> batch,
+			S3BulkDeleteResponse response) throws AmazonClientException, InterruptedException {
+		List<KeyVersion> pending = batch;
+		for (int attempt = 0;; attempt++) {
+			if (attempt > 0) {
+				Thread.sleep(RETRY_BASE_WAIT_MILLIS << Math.min(attempt - 1, 10));
+			}
+			rateLimiter.acquire();
+			response.addRequest();
+			try {
+				// quiet mode, response only contains errors
+				s3Client.deleteObjects(new DeleteObjectsRequest(bucket).withKeys(pending).withQuiet(true));
+				response.addDeleted(pending.size());
+				return;
+			} catch (MultiObjectDeleteException e) {
+				// partial failure, only throttled/internal errors are worth retrying
+				response.addDeleted(pending.size() - e.getErrors().size());
+				List<DeleteError> retryable = new ArrayList<DeleteError>();
+				List<DeleteError> failed = new ArrayList<DeleteError>();
+				for (DeleteError error : e.getErrors()) {
+					if (attempt < maxRetries && RETRYABLE_ERROR_CODES.contains(error.getCode())) {
+						retryable.add(error);
+					} else {
+						failed.add(error);
+					}
+				}
+				response.addErrors(failed);
+				if (retryable.isEmpty()) {
+					return;
+				}
+				pending = new ArrayList<KeyVersion>(retryable.size());
+				for (DeleteError error : retryable) {
+					pending.add(new KeyVersion(error.getKey(), error.getVersionId()));
+				}
+			} catch (AmazonServiceException e) {
+				// whole request failed, retry only when S3 is busy/failing
+				if (e.getStatusCode() < 500 && !"SlowDown".equals(e.getErrorCode())) {
+					throw e;
+				}
+				if (attempt >= maxRetries) {
+					response.addErrors(toErrors(pending, e));
+					return;
+				}
+			} catch (AmazonClientException e) {
+				// network/client side error
+				if (attempt >= maxRetries) {
+					response.addErrors(toErrors(pending, e));
+					return;
+				}
+			}
+		}
+	}
+
+	private List<DeleteError> toErrors(List<KeyVersion> keys, AmazonClientException e) {
+		List<DeleteError> errors = new ArrayList<DeleteError>(keys.size());
+		String code = e instanceof AmazonServiceException ? ((AmazonServiceException) e).getErrorCode()
+				: e.getClass().getSimpleName();
+		for (KeyVersion key : keys) {
+			DeleteError error = new DeleteError();
+			error.setKey(key.getKey());
+			error.setVersionId(key.getVersion());
+			error.setCode(code);
+			error.setMessage(e.getMessage());
+			errors.add(error);
+		}
+		return errors;
+	}
+
+	/**
+	 * Lists all versions and delete markers page by page, every page is one
+	 * batch
+	 */
+	private static class VersionBatchIterator implements Iterator<List<KeyVersion>> {
+
+		private final AmazonS3 s3Client;
+		private final String bucket;
+		private final String prefix;
+		private VersionListing listing;
+
+		VersionBatchIterator(AmazonS3 s3Client, String bucket, String prefix) {
+			this.s3Client = s3Client;
+			this.bucket = bucket;
+			this.prefix = prefix;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return listing == null || listing.isTruncated();
+		}
+
+		@Override
+		public List<KeyVersion> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			if (listing == null) {
+				listing = s3Client.listVersions(new ListVersionsRequest().withBucketName(bucket).withPrefix(prefix)
+						.withMaxResults(MAX_KEYS_PER_REQUEST));
+			} else {
+				listing = s3Client.listNextBatchOfVersions(listing);
+			}
+			List<KeyVersion> batch = new ArrayList<KeyVersion>(listing.getVersionSummaries().size());
+			for (S3VersionSummary summary : listing.getVersionSummaries()) {
+				batch.add(new KeyVersion(summary.getKey(), summary.getVersionId()));
+			}
+			return batch;
+		}
+	}
+
+}
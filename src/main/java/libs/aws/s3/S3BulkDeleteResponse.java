@@ -0,0 +1,68 @@
+package libs.aws.s3;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
+
+/**
+ * Response of bulk delete action, see {@link S3BulkDeleteHandler}. Updated by
+ * multiple worker threads, so all methods are synchronized
+ *
+ * @author Kuldeep
+ *
+ */
+public class S3BulkDeleteResponse {
+
+	/**
+	 * Number of keys/versions deleted
+	 */
+	private long deletedCount;
+
+	/**
+	 * Number of DeleteObjects requests sent, including retries
+	 */
+	private long requestCount;
+
+	/**
+	 * Keys which could not be deleted even after retries
+	 */
+	private List<DeleteError> errors = new ArrayList<DeleteError>();
+
+	public synchronized long getDeletedCount() {
+		return deletedCount;
+	}
+
+	public synchronized void addDeleted(long count) {
+		deletedCount += count;
+	}
+
+	public synchronized long getRequestCount() {
+		return requestCount;
+	}
+
+	public synchronized void addRequest() {
+		requestCount++;
+	}
+
+	public synchronized List<DeleteError> getErrors() {
+		return new ArrayList<DeleteError>(errors);
+	}
+
+	public synchronized void addErrors(List<DeleteError> errors) {
+		this.errors.addAll(errors);
+	}
+
+	/**
+	 * @return true if every key was deleted
+	 */
+	public synchronized boolean isSuccess() {
+		return errors.isEmpty();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "S3BulkDeleteResponse [deletedCount=" + deletedCount + ", requestCount=" + requestCount
+				+ ", errors=" + errors.size() + "]";
+	}
+}
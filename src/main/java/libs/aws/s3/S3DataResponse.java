@@ -1,6 +1,7 @@
 package libs.aws.s3;
 
 import java.io.File;
+import java.nio.ByteBuffer;
 
 import com.amazonaws.services.s3.model.S3Object;
 
@@ -13,11 +14,19 @@ import com.amazonaws.services.s3.model.S3Object;
 public class S3DataResponse {
 
 	/**
-	 * S3 object, if response is object and can be stored in memory
+	 * S3 object when response is stored to file, carries meta data only (its
+	 * content is already read and closed). Null when object is read into
+	 * memory, use {@link S3DataResponse#getContent()}
 	 */
 	private S3Object s3Object;
+
+	/**
+	 * Object data when read into memory (not stored to file). Read only, same
+	 * data is shared by concurrent requests of same object
+	 */
+	private ByteBuffer content;
 	/**
-	 * If true, S3 object is null and object copied to provided file
+	 * If true, object copied to provided file and content is null
 	 */
 	private boolean responseStoredToFile = false;
 
@@ -35,6 +44,18 @@ public class S3DataResponse {
 		this.s3Object = s3Object;
 	}
 
+	/**
+	 * @return object data (own position/limit, shared read only data) or null
+	 *         when response is stored to file
+	 */
+	public ByteBuffer getContent() {
+		return content == null ? null : content.duplicate();
+	}
+
+	public void setContent(ByteBuffer content) {
+		this.content = content == null ? null : content.asReadOnlyBuffer();
+	}
+
 	public boolean isResponseStoredToFile() {
 		return responseStoredToFile;
 	}
@@ -53,7 +74,7 @@ public class S3DataResponse {
 
 	@Override
 	public String toString() {
-		return "S3DataResponse [s3Object=" + s3Object + ", responseStoredToFile=" + responseStoredToFile + ", filePath="
-				+ file + "]";
+		return "S3DataResponse [s3Object=" + s3Object + ", content=" + content + ", responseStoredToFile="
+				+ responseStoredToFile + ", filePath=" + file + "]";
 	}
 }
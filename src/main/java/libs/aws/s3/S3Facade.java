@@ -3,7 +3,14 @@ package libs.aws.s3;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
@@ -13,6 +20,7 @@ import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 
+import libs.aws.s3.util.TransferBufferPool;
 import libs.aws.s3.util.Util;
 
 /**
@@ -25,7 +33,22 @@ import libs.aws.s3.util.Util;
  * 
  * Download file from S3 - Automatically manages whether file should be uploaded
  * using multipart or normal single upload. Use
- * MEMORY_PERCENT_AVAILABLE_AFTER_FILE property to decide
+ * MEMORY_PERCENT_AVAILABLE_AFTER_FILE property to decide. Concurrent downloads
+ * of same object (and destination) share one transfer
+ * 
+ * Pack mode - Many small files can be packed into few container objects
+ * instead of one PUT per file, see {@link S3ObjectPacker} and
+ * {@link S3PackReader}
+ * 
+ * List all objects under prefix - Lists key ranges in parallel, see
+ * {@link S3ListingEngine}
+ * 
+ * Delete all objects under prefix or empty bucket - Uses batched delete, see
+ * {@link S3BulkDeleteHandler}
+ * 
+ * Transfer buffers (upload, download, range read) are pooled, see
+ * {@link TransferBufferPool#instance()} for
+ * pool statistics
  * 
  * Adjust MEMORY_PERCENT_AVAILABLE_AFTER_FILE property according to requirement.
  * 
@@ -62,8 +85,33 @@ public class S3Facade {
 	 */
 	private boolean usePercent = true;
 
+	/**
+	 * Default size below which files are packed, see
+	 * {@link S3Facade#createPacker(AmazonS3, String, String)}
+	 */
+	private final static long PACK_THRESHOLD = 1024 * 100; // 100 KB
+
+	/**
+	 * Default target size of pack container
+	 */
+	private final static long PACK_CONTAINER_SIZE = 1024 * 1024 * 64; // 64 MB
+
 	private final static S3Facade instance = new S3Facade();
 	private S3RequestHandler requestHandler = new S3RequestHandler();
+	private S3BulkDeleteHandler bulkDeleteHandler = new S3BulkDeleteHandler();
+	private S3ListingEngine listingEngine = new S3ListingEngine();
+
+	/**
+	 * Downloads in progress by client, bucket, key, version and destination,
+	 * see {@link S3Facade#getObject(AmazonS3, String, String, String, File)}
+	 */
+	private ConcurrentMap<FlightKey, FutureTask<S3DataWithMetaDataResponse>> inFlight = //
+			new ConcurrentHashMap<FlightKey, FutureTask<S3DataWithMetaDataResponse>>();
+
+	/**
+	 * Pack readers (cached indexes) by bucket and pack prefix
+	 */
+	private ConcurrentMap<String, S3PackReader> packReaders = new ConcurrentHashMap<String, S3PackReader>();
 
 	public final static S3Facade instance() {
 		return instance;
@@ -136,8 +184,15 @@ public class S3Facade {
 
 	/**
 	 * Download/Returns object. Response uses the same logic as upload to
-	 * whether download as S3 response object or store contents to file.
-	 * Response automatically includes object's meta data
+	 * whether download in memory or store contents to file. In memory content
+	 * is only available from {@link S3DataResponse#getContent()}, S3 object of
+	 * response is null (its stream is already read and closed). Response
+	 * automatically includes object's meta data.
+	 * 
+	 * Concurrent calls for same client (same instance), bucket, key, version
+	 * and destination share one transfer (single flight), every caller gets
+	 * same read only content (own position) or same destination file. Calls
+	 * with different destinations don't share, each destination is written.
 	 * 
 	 * @param s3Client
 	 *            - client connection object ( BasicAWSCredentials creds = new
@@ -161,21 +216,234 @@ public class S3Facade {
 	 */
 	public S3DataWithMetaDataResponse getObject(AmazonS3 s3Client, String bucket, String file, File destination)
 			throws AmazonClientException, AmazonServiceException, IOException {
+		return getObject(s3Client, bucket, file, null, destination);
+	}
+
+	/**
+	 * Same as {@link S3Facade#getObject(AmazonS3, String, String, File)} for
+	 * given version of object
+	 * 
+	 * @param versionId
+	 *            - null for latest version
+	 */
+	public S3DataWithMetaDataResponse getObject(final AmazonS3 s3Client, final String bucket, final String file,
+			final String versionId, final File destination)
+			throws AmazonClientException, AmazonServiceException, IOException {
+		FlightKey flightKey = new FlightKey(s3Client, bucket, file, versionId, destination);
+		FutureTask<S3DataWithMetaDataResponse> flight = new FutureTask<S3DataWithMetaDataResponse>(
+				new Callable<S3DataWithMetaDataResponse>() {
+
+					@Override
+					public S3DataWithMetaDataResponse call() throws Exception {
+						return fetchObject(s3Client, bucket, file, versionId, destination);
+					}
+				});
+		FutureTask<S3DataWithMetaDataResponse> existing = inFlight.putIfAbsent(flightKey, flight);
+		if (existing == null) {
+			// this call does the transfer, waiters join it till it is removed
+			try {
+				flight.run();
+			} finally {
+				inFlight.remove(flightKey, flight);
+			}
+			existing = flight;
+		}
+		try {
+			return share(existing.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AmazonClientException("Interrupted while waiting for " + file, e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new AmazonClientException(cause);
+		}
+	}
+
+	/**
+	 * Actual transfer, see {@link S3Facade#getObject(AmazonS3, String, String, String, File)}
+	 */
+	private S3DataWithMetaDataResponse fetchObject(AmazonS3 s3Client, String bucket, String file, String versionId,
+			File destination) throws AmazonClientException, AmazonServiceException, IOException {
 		S3DataWithMetaDataResponse response = new S3DataWithMetaDataResponse();
-		ObjectMetadata metaData = requestHandler.getObjectMetaData(s3Client, bucket, file);
+		ObjectMetadata metaData = requestHandler.getObjectMetaData(s3Client, bucket, file, versionId);
 		if (Util.checkPercentAvaiableMemoryAfterSize(MEMORY_PERCENT_AVAILABLE_AFTER_FILE,
 				metaData.getContentLength())) {
-			S3DataResponse s3Response = new S3DataResponse();
-			response.setDataResponse(s3Response);
-			s3Response.setS3Object(requestHandler.getObject(s3Client, bucket, file));
-
+			response.setDataResponse(requestHandler.getObjectContent(s3Client, bucket, file, versionId));
 		} else {
-			response.setDataResponse(requestHandler.getObject(s3Client, bucket, file, destination));
+			response.setDataResponse(requestHandler.getObject(s3Client, bucket, file, versionId, destination));
 		}
 		response.setMetaData(metaData);
 		return response;
 	}
 
+	/**
+	 * @return copy of shared response, every caller gets own content position
+	 */
+	private static S3DataWithMetaDataResponse share(S3DataWithMetaDataResponse shared) {
+		S3DataResponse data = new S3DataResponse();
+		data.setS3Object(shared.getDataResponse().getS3Object());
+		data.setContent(shared.getDataResponse().getContent());
+		data.setResponseStoredToFile(shared.getDataResponse().isResponseStoredToFile());
+		data.setFile(shared.getDataResponse().getFile());
+		S3DataWithMetaDataResponse response = new S3DataWithMetaDataResponse();
+		response.setDataResponse(data);
+		response.setMetaData(shared.getMetaData());
+		return response;
+	}
+
+	/**
+	 * Key of {@link S3Facade#inFlight}. Different clients can have different
+	 * credentials/regions, so client is compared by reference, only calls
+	 * through same client instance share a transfer
+	 */
+	private static class FlightKey {
+
+		private final AmazonS3 s3Client;
+		private final String bucket;
+		private final String file;
+		private final String versionId;
+		private final File destination;
+
+		FlightKey(AmazonS3 s3Client, String bucket, String file, String versionId, File destination) {
+			this.s3Client = s3Client;
+			this.bucket = bucket;
+			this.file = file;
+			this.versionId = versionId;
+			this.destination = destination;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(System.identityHashCode(s3Client), bucket, file, versionId, destination);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof FlightKey)) {
+				return false;
+			}
+			FlightKey other = (FlightKey) obj;
+			return s3Client == other.s3Client && Objects.equals(bucket, other.bucket)
+					&& Objects.equals(file, other.file) && Objects.equals(versionId, other.versionId)
+					&& Objects.equals(destination, other.destination);
+		}
+	}
+
+	/**
+	 * Creates packer with default threshold (100 KB) and container size (64 MB).
+	 * See {@link S3Facade#createPacker(AmazonS3, String, String, long, long)}
+	 */
+	public S3ObjectPacker createPacker(AmazonS3 s3Client, String bucket, String packPrefix) {
+		return createPacker(s3Client, bucket, packPrefix, PACK_THRESHOLD, PACK_CONTAINER_SIZE);
+	}
+
+	/**
+	 * Creates packer, files smaller than threshold added to packer are packed
+	 * into container objects under pack prefix, bigger files are uploaded using
+	 * {@link S3Facade#uploadObject(AmazonS3, String, String, File, ObjectMetadata)}.
+	 * Close packer at end to upload last container
+	 * 
+	 * @param s3Client
+	 *            - client connection object
+	 * @param bucket
+	 *            - remote s3 bucket
+	 * @param packPrefix
+	 *            - prefix of containers and indexes, like 'packs/'
+	 * @param threshold
+	 *            - files smaller than this (bytes) are packed
+	 * @param containerSize
+	 *            - target container size in bytes
+	 * @return {@link S3ObjectPacker}
+	 */
+	public S3ObjectPacker createPacker(AmazonS3 s3Client, String bucket, String packPrefix, long threshold,
+			long containerSize) {
+		return new S3ObjectPacker(s3Client, bucket, packPrefix, threshold, containerSize);
+	}
+
+	/**
+	 * Reads a packed file with ranged GET into its container. Indexes of pack
+	 * prefix are loaded on first call and cached
+	 * 
+	 * @param s3Client
+	 *            - client connection object
+	 * @param bucket
+	 *            - remote s3 bucket
+	 * @param packPrefix
+	 *            - prefix used by packer
+	 * @param key
+	 *            - key of packed file
+	 * @return content or null if key is not packed
+	 * @throws AmazonServiceException
+	 * @throws AmazonClientException
+	 * @throws IOException
+	 */
+	public ByteBuffer getPackedObject(AmazonS3 s3Client, String bucket, String packPrefix, String key)
+			throws AmazonServiceException, AmazonClientException, IOException {
+		String readerKey = bucket + "/" + packPrefix;
+		S3PackReader reader = packReaders.get(readerKey);
+		if (reader == null) {
+			packReaders.putIfAbsent(readerKey, new S3PackReader(bucket, packPrefix));
+			reader = packReaders.get(readerKey);
+		}
+		return reader.getObject(s3Client, key);
+	}
+
+	/**
+	 * Lists all objects under given prefix. Key space is split into shards
+	 * which are listed in parallel, keys can be read as soon as they arrive.
+	 * See {@link S3ListingEngine}
+	 * 
+	 * @param s3Client
+	 *            - client connection object
+	 * @param bucket
+	 *            - remote s3 bucket
+	 * @param prefix
+	 *            - key prefix, null for whole bucket
+	 * @param ordered
+	 *            - true to get keys in S3 (sorted) order
+	 * @return {@link S3ListingIterator} - close it if not read till end
+	 * @throws AmazonServiceException
+	 * @throws AmazonClientException
+	 */
+	public S3ListingIterator listObjects(AmazonS3 s3Client, String bucket, String prefix, boolean ordered)
+			throws AmazonServiceException, AmazonClientException {
+		return listingEngine.list(s3Client, bucket, prefix, ordered);
+	}
+
+	/**
+	 * Deletes all objects under given prefix using batched DeleteObjects
+	 * requests. See {@link S3BulkDeleteHandler}
+	 * 
+	 * @param s3Client
+	 *            - client connection object
+	 * @param bucket
+	 *            - remote s3 bucket
+	 * @param prefix
+	 *            - key prefix, null or empty to empty whole bucket
+	 * @param allVersions
+	 *            - true to delete all versions and delete markers as well
+	 * @return {@link S3BulkDeleteResponse} - deleted count and keys which
+	 *         could not be deleted
+	 * @throws AmazonServiceException
+	 * @throws AmazonClientException
+	 */
+	public S3BulkDeleteResponse deletePrefix(AmazonS3 s3Client, String bucket, String prefix, boolean allVersions)
+			throws AmazonServiceException, AmazonClientException {
+		return bulkDeleteHandler.deletePrefix(s3Client, bucket, prefix, allVersions);
+	}
+
 	/**
 	 * Main just to quick test
 	 * 
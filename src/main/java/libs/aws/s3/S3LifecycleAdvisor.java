@@ -0,0 +1,521 @@
+package libs.aws.s3;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.BucketLifecycleConfiguration;
+import com.amazonaws.services.s3.model.BucketLifecycleConfiguration.Rule;
+import com.amazonaws.services.s3.model.BucketLifecycleConfiguration.Transition;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.StorageClass;
+import com.amazonaws.services.s3.model.Tag;
+import com.amazonaws.services.s3.model.lifecycle.LifecycleAndOperator;
+import com.amazonaws.services.s3.model.lifecycle.LifecycleFilter;
+import com.amazonaws.services.s3.model.lifecycle.LifecycleFilterPredicate;
+import com.amazonaws.services.s3.model.lifecycle.LifecyclePredicateVisitor;
+import com.amazonaws.services.s3.model.lifecycle.LifecyclePrefixPredicate;
+import com.amazonaws.services.s3.model.lifecycle.LifecycleTagPredicate;
+
+/**
+ * Proposes lifecycle rules from actual data instead of hard coded rules like in
+ * {@link Misc#lifeCycleOperations(AmazonS3)}.
+ *
+ * Objects are read either from bucket listing or from S3 Inventory report (CSV,
+ * optionally gzip) line by line and only aggregated counters per prefix and
+ * per tag ({@link S3UsageStats}) are kept, so memory depends on number of
+ * prefixes, not on number of objects. Prefix is first
+ * {@link S3LifecycleAdvisor#prefixDepth} folders of a key and number of
+ * tracked prefixes is capped, extra prefixes are counted under
+ * {@link S3LifecycleAdvisor#OTHER_PREFIXES}.
+ *
+ * Listing and inventory reports don't contain object tags, use
+ * {@link S3LifecycleAdvisor#add(String, long, Date, String, Collection)} when
+ * tags are known.
+ *
+ * Rule proposal - when enough STANDARD bytes of a prefix/tag are older than
+ * {@link S3LifecycleAdvisor#IA_TRANSITION_DAYS} (or
+ * {@link S3LifecycleAdvisor#GLACIER_TRANSITION_DAYS}), a transition is
+ * proposed. Small objects are skipped as IA/Glacier charge minimum object size
+ * (128 KB). Expiration is never proposed, deleting data is business decision.
+ *
+ * @author Kuldeep
+ *
+ */
+public class S3LifecycleAdvisor {
+
+	/**
+	 * Stats name for prefixes over {@link S3LifecycleAdvisor#maxPrefixes}
+	 */
+	public final static String OTHER_PREFIXES = "*";
+
+	/**
+	 * IA requires objects to be at least 30 days old
+	 */
+	public final static int IA_TRANSITION_DAYS = 30;
+
+	public final static int GLACIER_TRANSITION_DAYS = 90;
+
+	/**
+	 * IA and Glacier bill small objects as 128 KB
+	 */
+	private final static long MIN_TRANSITION_OBJECT_SIZE = 128 * 1024;
+
+	/**
+	 * Ignore prefixes/tags smaller than this, rule is not worth it
+	 */
+	private final static long MIN_RULE_BYTES = 1024L * 1024 * 1024; // 1 GB
+
+	/**
+	 * Part of STANDARD bytes which must be older than transition days to
+	 * propose a transition
+	 */
+	private final static double MIN_COLD_SHARE = 0.5;
+
+	/**
+	 * Default inventory columns for report with fields Bucket, Key, Size,
+	 * LastModifiedDate, StorageClass (in this order)
+	 */
+	private int keyColumn = 1, sizeColumn = 2, lastModifiedColumn = 3, storageClassColumn = 4;
+
+	/**
+	 * Number of folders (delimited by /) of key used as prefix
+	 */
+	private final int prefixDepth;
+
+	private final int maxPrefixes;
+
+	/**
+	 * Epoch day used to calculate object age
+	 */
+	private final long today = TimeUnit.MILLISECONDS.toDays(System.currentTimeMillis());
+
+	private final Map<String, S3UsageStats> prefixStats = new HashMap<String, S3UsageStats>();
+
+	private final Map<String, S3UsageStats> tagStats = new HashMap<String, S3UsageStats>();
+
+	/**
+	 * Prefix depth 1 and at most 10,000 prefixes
+	 */
+	public S3LifecycleAdvisor() {
+		this(1, 10000);
+	}
+
+	/**
+	 * @param prefixDepth
+	 *            - number of folders used as prefix, 1 means 'logs/' for key
+	 *            'logs/2018/a.txt', 2 means 'logs/2018/'
+	 * @param maxPrefixes
+	 *            - max prefixes tracked separately
+	 */
+	public S3LifecycleAdvisor(int prefixDepth, int maxPrefixes) {
+		if (prefixDepth < 1) {
+			throw new IllegalArgumentException("prefixDepth should be at least 1");
+		}
+		this.prefixDepth = prefixDepth;
+		this.maxPrefixes = maxPrefixes;
+	}
+
+	/**
+	 * Sets (0 based) columns of inventory CSV, depends on fields selected in
+	 * inventory configuration. Pass -1 for storageClass if not part of report
+	 */
+	public void setInventoryColumns(int key, int size, int lastModified, int storageClass) {
+		this.keyColumn = key;
+		this.sizeColumn = size;
+		this.lastModifiedColumn = lastModified;
+		this.storageClassColumn = storageClass;
+	}
+
+	/**
+	 * Adds every object of bucket/prefix, see {@link S3ListingEngine}
+	 *
+	 * @param s3Client
+	 * @param bucket
+	 * @param prefix
+	 *            - null for whole bucket
+	 * @throws AmazonServiceException
+	 * @throws AmazonClientException
+	 */
+	public void analyzeBucket(AmazonS3 s3Client, String bucket, String prefix)
+			throws AmazonServiceException, AmazonClientException {
+		// order does not matter for counters
+		S3ListingIterator objects = new S3ListingEngine().list(s3Client, bucket, prefix, false);
+		try {
+			while (objects.hasNext()) {
+				S3ObjectSummary summary = objects.next();
+				add(summary.getKey(), summary.getSize(), summary.getLastModified(), summary.getStorageClass(), null);
+			}
+		} finally {
+			objects.close();
+		}
+	}
+
+	/**
+	 * Adds every object of inventory CSV file stored in S3 (data file listed in
+	 * inventory manifest.json). File is streamed, '.gz' files are decompressed
+	 *
+	 * @param s3Client
+	 * @param bucket
+	 *            - bucket where inventory is delivered
+	 * @param key
+	 *            - inventory data file
+	 * @return number of objects read
+	 * @throws AmazonServiceException
+	 * @throws AmazonClientException
+	 * @throws IOException
+	 */
+	public long analyzeInventory(AmazonS3 s3Client, String bucket, String key)
+			throws AmazonServiceException, AmazonClientException, IOException {
+		S3Object object = s3Client.getObject(bucket, key);
+		try {
+			return analyzeInventory(object.getObjectContent(), key.endsWith(".gz"));
+		} finally {
+			object.close();
+		}
+	}
+
+	/**
+	 * Adds every object of inventory CSV stream. Stream is not closed
+	 *
+	 * @param in
+	 * @param gzip
+	 *            - true if stream is gzip compressed
+	 * @return number of objects read
+	 * @throws IOException
+	 */
+	public long analyzeInventory(InputStream in, boolean gzip) throws IOException {
+		if (gzip) {
+			in = new GZIPInputStream(in, 64 * 1024);
+		}
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 64 * 1024);
+		int columns = Math.max(Math.max(keyColumn, sizeColumn), Math.max(lastModifiedColumn, storageClassColumn)) + 1;
+		String[] fields = new String[columns];
+		long count = 0;
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (splitCsv(line, fields) < columns) {
+				continue; // delete marker or incomplete row
+			}
+			if (fields[sizeColumn].isEmpty() || fields[lastModifiedColumn].length() < 10) {
+				continue;
+			}
+			String key = fields[keyColumn];
+			if (key.indexOf('%') >= 0 || key.indexOf('+') >= 0) {
+				key = URLDecoder.decode(key, "UTF-8"); // keys are url encoded
+			}
+			add(key, Long.parseLong(fields[sizeColumn]), parseEpochDay(fields[lastModifiedColumn]),
+					storageClassColumn < 0 ? null : fields[storageClassColumn], null);
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Adds single object
+	 *
+	 * @param key
+	 * @param size
+	 * @param lastModified
+	 * @param storageClass
+	 *            - null for STANDARD
+	 * @param tags
+	 *            - object tags if known, else null
+	 */
+	public void add(String key, long size, Date lastModified, String storageClass, Collection<Tag> tags) {
+		add(key, size, TimeUnit.MILLISECONDS.toDays(lastModified.getTime()), storageClass, tags);
+	}
+
+	private void add(String key, long size, long lastModifiedDay, String storageClass, Collection<Tag> tags) {
+		long ageDays = Math.max(0, today - lastModifiedDay);
+		stats(prefixStats, prefixOf(key), maxPrefixes).add(size, ageDays, storageClass);
+		if (tags != null) {
+			for (Tag tag : tags) {
+				stats(tagStats, tag.getKey() + "=" + tag.getValue(), maxPrefixes).add(size, ageDays, storageClass);
+			}
+		}
+	}
+
+	private static S3UsageStats stats(Map<String, S3UsageStats> map, String name, int max) {
+		S3UsageStats stats = map.get(name);
+		if (stats == null) {
+			if (map.size() >= max) {
+				name = OTHER_PREFIXES;
+				stats = map.get(name);
+			}
+			if (stats == null) {
+				stats = new S3UsageStats(name);
+				map.put(name, stats);
+			}
+		}
+		return stats;
+	}
+
+	/**
+	 * @return first {@link S3LifecycleAdvisor#prefixDepth} folders of key,
+	 *         empty string for keys in bucket root
+	 */
+	private String prefixOf(String key) {
+		int end = -1;
+		for (int i = 0; i < prefixDepth; i++) {
+			int next = key.indexOf('/', end + 1);
+			if (next < 0) {
+				break;
+			}
+			end = next;
+		}
+		return key.substring(0, end + 1);
+	}
+
+	/**
+	 * Parses yyyy-MM-dd part of ISO date without creating date objects
+	 */
+	private static long parseEpochDay(String date) {
+		int year = Integer.parseInt(date.substring(0, 4));
+		int month = Integer.parseInt(date.substring(5, 7));
+		int day = Integer.parseInt(date.substring(8, 10));
+		return LocalDate.of(year, month, day).toEpochDay();
+	}
+
+	/**
+	 * Splits CSV line (fields are quoted by inventory) into given array,
+	 * ignores extra fields
+	 *
+	 * @return number of fields found
+	 */
+	private static int splitCsv(String line, String[] fields) {
+		int count = 0;
+		int i = 0;
+		int length = line.length();
+		StringBuilder field = new StringBuilder();
+		while (i <= length && count < fields.length) {
+			field.setLength(0);
+			if (i < length && line.charAt(i) == '"') {
+				i++;
+				while (i < length) {
+					char c = line.charAt(i++);
+					if (c == '"') {
+						if (i < length && line.charAt(i) == '"') {
+							field.append('"');
+							i++;
+						} else {
+							break;
+						}
+					} else {
+						field.append(c);
+					}
+				}
+				// skip till delimiter
+				while (i < length && line.charAt(i) != ',') {
+					i++;
+				}
+			} else {
+				while (i < length && line.charAt(i) != ',') {
+					field.append(line.charAt(i++));
+				}
+			}
+			fields[count++] = field.toString();
+			i++; // delimiter
+		}
+		return count;
+	}
+
+	public Map<String, S3UsageStats> getPrefixStats() {
+		return new TreeMap<String, S3UsageStats>(prefixStats);
+	}
+
+	public Map<String, S3UsageStats> getTagStats() {
+		return new TreeMap<String, S3UsageStats>(tagStats);
+	}
+
+	/**
+	 * Proposes lifecycle rules from collected stats. A prefix is judged on its
+	 * own objects plus objects of all its child prefixes (rule applies to all
+	 * of them), and no rule is proposed for it when any child alone has too
+	 * small objects for transition. A prefix rule is skipped when rule for its
+	 * parent prefix is proposed, parent already covers it. Tag rules can still overlap with prefix rules, check with
+	 * {@link S3LifecycleAdvisor#findOverlappingRules(BucketLifecycleConfiguration)}
+	 *
+	 * @return proposed configuration, can be empty
+	 */
+	public BucketLifecycleConfiguration proposeConfiguration() {
+		List<Rule> rules = new ArrayList<Rule>();
+		List<String> proposedPrefixes = new ArrayList<String>();
+		// tree map, parents come before children
+		TreeMap<String, S3UsageStats> prefixes = new TreeMap<String, S3UsageStats>(prefixStats);
+		for (S3UsageStats stats : prefixes.values()) {
+			String prefix = stats.getName();
+			if (OTHER_PREFIXES.equals(prefix) || prefix.isEmpty()) {
+				continue; // no common prefix
+			}
+			boolean coveredByParent = false;
+			for (String parent : proposedPrefixes) {
+				if (prefix.startsWith(parent)) {
+					coveredByParent = true;
+					break;
+				}
+			}
+			if (coveredByParent) {
+				continue;
+			}
+			// children are right after parent in tree map
+			S3UsageStats subtree = new S3UsageStats(prefix);
+			boolean smallChild = false;
+			for (S3UsageStats child : prefixes.tailMap(prefix).values()) {
+				if (!child.getName().startsWith(prefix)) {
+					break;
+				}
+				subtree.add(child);
+				if (child != stats && child.getStandardBytes() > 0
+						&& child.getAverageObjectSize() < MIN_TRANSITION_OBJECT_SIZE) {
+					smallChild = true;
+				}
+			}
+			Rule rule = smallChild ? null : proposeRule(subtree, new LifecyclePrefixPredicate(prefix));
+			if (rule != null) {
+				rules.add(rule.withId("advisor prefix " + prefix));
+				proposedPrefixes.add(prefix);
+			}
+		}
+		for (S3UsageStats stats : getTagStats().values()) {
+			if (OTHER_PREFIXES.equals(stats.getName())) {
+				continue;
+			}
+			String[] tag = stats.getName().split("=", 2);
+			Rule rule = proposeRule(stats, new LifecycleTagPredicate(new Tag(tag[0], tag[1])));
+			if (rule != null) {
+				rules.add(rule.withId("advisor tag " + stats.getName()));
+			}
+		}
+		return new BucketLifecycleConfiguration().withRules(rules);
+	}
+
+	/**
+	 * @return rule with transitions or null when not worth it
+	 */
+	private Rule proposeRule(S3UsageStats stats, LifecycleFilterPredicate predicate) {
+		long standardBytes = stats.getStandardBytes();
+		if (standardBytes < MIN_RULE_BYTES || stats.getAverageObjectSize() < MIN_TRANSITION_OBJECT_SIZE) {
+			return null;
+		}
+		Rule rule = new Rule().withFilter(new LifecycleFilter(predicate))
+				.withStatus(BucketLifecycleConfiguration.ENABLED);
+		if (stats.getStandardBytesOlderThan(IA_TRANSITION_DAYS) >= standardBytes * MIN_COLD_SHARE) {
+			rule.addTransition(
+					new Transition().withDays(IA_TRANSITION_DAYS).withStorageClass(StorageClass.StandardInfrequentAccess));
+		}
+		if (stats.getStandardBytesOlderThan(GLACIER_TRANSITION_DAYS) >= standardBytes * MIN_COLD_SHARE) {
+			rule.addTransition(
+					new Transition().withDays(GLACIER_TRANSITION_DAYS).withStorageClass(StorageClass.Glacier));
+		}
+		return rule.getTransitions() == null || rule.getTransitions().isEmpty() ? null : rule;
+	}
+
+	/**
+	 * Finds pairs of enabled rules which can apply to same object. Two rules
+	 * overlap when one prefix starts with other (no prefix matches all) and
+	 * their tags don't conflict (same tag key with different values). See
+	 * https://docs.aws.amazon.com/AmazonS3/latest/dev/lifecycle-configuration-examples.html#lifecycle-config-conceptual-ex5
+	 *
+	 * @param configuration
+	 * @return description of every overlapping pair, empty if none
+	 */
+	public static List<String> findOverlappingRules(BucketLifecycleConfiguration configuration) {
+		List<String> overlaps = new ArrayList<String>();
+		if (configuration == null || configuration.getRules() == null) {
+			return overlaps;
+		}
+		List<Rule> rules = new ArrayList<Rule>();
+		List<RuleScope> scopes = new ArrayList<RuleScope>();
+		for (Rule rule : configuration.getRules()) {
+			if (BucketLifecycleConfiguration.ENABLED.equals(rule.getStatus())) {
+				rules.add(rule);
+				scopes.add(RuleScope.of(rule));
+			}
+		}
+		for (int i = 0; i < rules.size(); i++) {
+			for (int j = i + 1; j < rules.size(); j++) {
+				if (scopes.get(i).overlaps(scopes.get(j))) {
+					overlaps.add("Rule '" + rules.get(i).getId() + "' " + scopes.get(i) + " overlaps rule '"
+							+ rules.get(j).getId() + "' " + scopes.get(j));
+				}
+			}
+		}
+		return overlaps;
+	}
+
+	/**
+	 * Prefix and tags selected by a rule
+	 */
+	static class RuleScope implements LifecyclePredicateVisitor {
+
+		private String prefix = "";
+		private final Map<String, String> tags = new TreeMap<String, String>();
+
+		@SuppressWarnings("deprecation")
+		static RuleScope of(Rule rule) {
+			RuleScope scope = new RuleScope();
+			if (rule.getFilter() != null && rule.getFilter().getPredicate() != null) {
+				rule.getFilter().getPredicate().accept(scope);
+			} else if (rule.getPrefix() != null) {
+				scope.prefix = rule.getPrefix();
+			}
+			return scope;
+		}
+
+		boolean overlaps(RuleScope other) {
+			if (!prefix.startsWith(other.prefix) && !other.prefix.startsWith(prefix)) {
+				return false;
+			}
+			for (Map.Entry<String, String> tag : tags.entrySet()) {
+				String otherValue = other.tags.get(tag.getKey());
+				if (otherValue != null && !otherValue.equals(tag.getValue())) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public void visit(LifecyclePrefixPredicate predicate) {
+			if (predicate.getPrefix() != null) {
+				prefix = predicate.getPrefix();
+			}
+		}
+
+		@Override
+		public void visit(LifecycleTagPredicate predicate) {
+			tags.put(predicate.getTag().getKey(), predicate.getTag().getValue());
+		}
+
+		@Override
+		public void visit(LifecycleAndOperator operator) {
+			for (LifecycleFilterPredicate operand : operator.getOperands()) {
+				operand.accept(this);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "[prefix='" + prefix + "', tags=" + tags + "]";
+		}
+	}
+
+}
@@ -0,0 +1,388 @@
+package libs.aws.s3;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * Lists bucket/prefix in parallel. ListObjectsV2 pagination is serial (every
+ * page needs continuation token of previous page), so big bucket listing is
+ * slow. This engine splits key space into shards (key ranges) and lists shards
+ * concurrently using start-after, see {@link S3ListingIterator}.
+ *
+ * Split points - first, folders (common prefixes with '/' delimiter) under
+ * given prefix are discovered, reading at most
+ * {@link S3ListingEngine#maxDiscoveryPages} pages. When there are not enough
+ * folders to keep all threads busy (flat key space), lexicographic split
+ * points are added inside every folder (or inside prefix when there is no
+ * folder) using {@link S3ListingEngine#SPLIT_CHARACTERS}.
+ *
+ * Then subtrees are probed in parallel with one delimiter page each, so big
+ * folders next to small ones are split as well. A subtree (or the range after
+ * discovery) which does not fit in one page gets split points after the last
+ * entry of its page: for every position where entries of the page differ,
+ * next characters of {@link S3ListingEngine#SPLIT_CHARACTERS} (e.g. page
+ * ending with 'folder0999/' gets 'folder1', 'folder2' ...). Its sub folders
+ * and new split points are probed in next round. Probing stops after
+ * {@link S3ListingEngine#PROBES_PER_THREAD} probes per thread or when there
+ * are about {@link S3ListingEngine#SHARDS_PER_THREAD} shards per thread, so
+ * a big folder among many discovered folders can still end up in one shard.
+ *
+ * Other operations (bulk delete, lifecycle advisor etc.) consume keys from
+ * {@link S3ListingEngine#list(AmazonS3, String, String, boolean)} as they
+ * arrive
+ *
+ * @author Kuldeep
+ *
+ */
+public class S3ListingEngine {
+
+	/**
+	 * Characters commonly used in keys, sorted. Used to split a range when
+	 * nothing is known about key distribution
+	 */
+	private final static String SPLIT_CHARACTERS = "-0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ_abcdefghijklmnopqrstuvwxyz";
+
+	private final static String DELIMITER = "/";
+
+	/**
+	 * Probe requests per thread while splitting, bounds start up cost
+	 */
+	private final static int PROBES_PER_THREAD = 8;
+
+	/**
+	 * Max shards per thread, every shard costs at least one request
+	 */
+	private final static int SHARDS_PER_THREAD = 64;
+
+	/**
+	 * Max character positions of a page's last entry used for split points
+	 */
+	private final static int MAX_SPLIT_POSITIONS = 8;
+
+	/**
+	 * See {@link S3ListingEngine#compareKeys(String, String)}
+	 */
+	private final static Comparator<String> KEY_ORDER = new Comparator<String>() {
+
+		@Override
+		public int compare(String a, String b) {
+			return compareKeys(a, b);
+		}
+	};
+
+	private final int threads;
+
+	/**
+	 * Max keys kept in memory, waiting for consumer
+	 */
+	private final int queueCapacity;
+
+	private final int maxDiscoveryPages;
+
+	/**
+	 * 16 threads, 16 * 1000 keys in memory and 10 discovery pages
+	 */
+	public S3ListingEngine() {
+		this(16, 16 * 1000, 10);
+	}
+
+	/**
+	 * @param threads
+	 *            - shards listed in parallel
+	 * @param queueCapacity
+	 *            - max keys buffered for consumer
+	 * @param maxDiscoveryPages
+	 *            - max pages (1000 entries each) of delimiter listing read to
+	 *            find folders
+	 */
+	public S3ListingEngine(int threads, int queueCapacity, int maxDiscoveryPages) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads should be at least 1");
+		}
+		this.threads = threads;
+		this.queueCapacity = Math.max(queueCapacity, threads);
+		this.maxDiscoveryPages = maxDiscoveryPages;
+	}
+
+	/**
+	 * Starts parallel listing
+	 *
+	 * @param s3Client
+	 * @param bucket
+	 * @param prefix
+	 *            - null for whole bucket
+	 * @param ordered
+	 *            - true to get keys in S3 order, false to get keys as soon as
+	 *            any shard lists them
+	 * @return iterator, close it if not read till end
+	 * @throws AmazonServiceException
+	 * @throws AmazonClientException
+	 */
+	public S3ListingIterator list(AmazonS3 s3Client, String bucket, String prefix, boolean ordered)
+			throws AmazonServiceException, AmazonClientException {
+		return new S3ListingIterator(s3Client, bucket, prefix, splitPoints(s3Client, bucket, prefix), threads,
+				queueCapacity, ordered);
+	}
+
+	/**
+	 * Same as {@link S3ListingEngine#list(AmazonS3, String, String, boolean)}
+	 * as {@link Stream}, closing stream stops listing
+	 */
+	public Stream<S3ObjectSummary> stream(AmazonS3 s3Client, String bucket, String prefix, boolean ordered)
+			throws AmazonServiceException, AmazonClientException {
+		final S3ListingIterator iterator = list(s3Client, bucket, prefix, ordered);
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, characteristics(ordered)), false)
+				.onClose(new Runnable() {
+
+					@Override
+					public void run() {
+						iterator.close();
+					}
+				});
+	}
+
+	private static int characteristics(boolean ordered) {
+		int characteristics = Spliterator.NONNULL | Spliterator.DISTINCT;
+		if (ordered) {
+			characteristics |= Spliterator.ORDERED;
+		}
+		return characteristics;
+	}
+
+	/**
+	 * @return sorted split points, shard i is range (point[i-1], point[i]]
+	 */
+	List<String> splitPoints(AmazonS3 s3Client, String bucket, String prefix) {
+		String base = prefix == null ? "" : prefix;
+		TreeSet<String> points = new TreeSet<String>(KEY_ORDER);
+		Probe discovery = probe(s3Client, bucket, base, maxDiscoveryPages);
+		points.addAll(discovery.folders);
+		// subtrees which may need more split points, broad ranges first
+		List<String> roots = new ArrayList<String>();
+		if (discovery.truncated) {
+			// beyond discovery, rest of key space
+			addSplitsAfter(base, discovery, points, roots);
+		}
+		roots.addAll(discovery.folders);
+
+		int wanted = threads * 4;
+		if (points.size() < wanted) {
+			List<String> parents = new ArrayList<String>(discovery.folders);
+			if (parents.isEmpty()) {
+				parents.add(base);
+			}
+			int perParent = Math.min(SPLIT_CHARACTERS.length(), (wanted + parents.size() - 1) / parents.size());
+			for (String parent : parents) {
+				for (int i = 1; i < perParent; i++) {
+					points.add(parent + SPLIT_CHARACTERS.charAt(i * SPLIT_CHARACTERS.length() / perParent));
+				}
+			}
+		}
+		refine(s3Client, bucket, roots, points);
+		return new ArrayList<String>(points);
+	}
+
+	/**
+	 * Probes subtrees in parallel rounds, adds split points inside the ones
+	 * which don't fit in one page
+	 */
+	private void refine(final AmazonS3 s3Client, final String bucket, List<String> roots, TreeSet<String> points) {
+		int maxProbes = threads * PROBES_PER_THREAD;
+		int maxShards = threads * SHARDS_PER_THREAD;
+		int probes = 0;
+		ExecutorService executor = null;
+		try {
+			while (!roots.isEmpty() && probes < maxProbes && points.size() < maxShards) {
+				List<String> batch = roots.subList(0, Math.min(roots.size(), maxProbes - probes));
+				if (executor == null) {
+					executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "s3-listing-probe-" + bucket);
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+				}
+				List<Future<Probe>> results = new ArrayList<Future<Probe>>(batch.size());
+				for (final String root : batch) {
+					results.add(executor.submit(new Callable<Probe>() {
+
+						@Override
+						public Probe call() {
+							return probe(s3Client, bucket, root, 1);
+						}
+					}));
+				}
+				probes += batch.size();
+				List<String> next = new ArrayList<String>();
+				for (int i = 0; i < batch.size(); i++) {
+					Probe probe = get(results.get(i));
+					if (points.size() >= maxShards) {
+						continue;
+					}
+					points.addAll(probe.folders);
+					if (probe.truncated) {
+						addSplitsAfter(batch.get(i), probe, points, next);
+					}
+					next.addAll(probe.folders);
+				}
+				roots = next;
+			}
+		} finally {
+			if (executor != null) {
+				executor.shutdownNow();
+			}
+		}
+	}
+
+	private static Probe get(Future<Probe> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AmazonClientException("Listing interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new AmazonClientException(e.getCause());
+		}
+	}
+
+	/**
+	 * Delimiter listing of root, at most given pages
+	 */
+	private static Probe probe(AmazonS3 s3Client, String bucket, String root, int maxPages) {
+		Probe probe = new Probe();
+		ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucket)
+				.withPrefix(root.isEmpty() ? null : root).withDelimiter(DELIMITER);
+		ListObjectsV2Result result;
+		int pages = 0;
+		do {
+			result = s3Client.listObjectsV2(request);
+			probe.folders.addAll(result.getCommonPrefixes());
+			probe.first = first(probe.first, result);
+			probe.last = last(probe.last, result);
+			request.setContinuationToken(result.getNextContinuationToken());
+		} while (result.isTruncated() && ++pages < maxPages);
+		probe.truncated = result.isTruncated();
+		return probe;
+	}
+
+	/**
+	 * Adds split points (and probe roots) after last entry of truncated probe.
+	 * For position i, point is last entry's first i characters followed by a
+	 * greater character. Only positions from root to where first and last
+	 * entry of probe differ are used, deeper positions only split the range
+	 * already listed by probe.
+	 */
+	private static void addSplitsAfter(String root, Probe probe, TreeSet<String> points, List<String> roots) {
+		if (probe.last == null) {
+			return;
+		}
+		int common = commonPrefixLength(probe.first, probe.last);
+		int end = Math.min(Math.min(common, probe.last.length() - 1), root.length() + MAX_SPLIT_POSITIONS - 1);
+		for (int i = root.length(); i <= end; i++) {
+			String head = probe.last.substring(0, i);
+			char current = probe.last.charAt(i);
+			for (int c = 0; c < SPLIT_CHARACTERS.length(); c++) {
+				if (SPLIT_CHARACTERS.charAt(c) > current) {
+					String point = head + SPLIT_CHARACTERS.charAt(c);
+					if (points.add(point)) {
+						roots.add(point);
+					}
+				}
+			}
+		}
+	}
+
+	private static int commonPrefixLength(String a, String b) {
+		int i = 0;
+		while (i < a.length() && i < b.length() && a.charAt(i) == b.charAt(i)) {
+			i++;
+		}
+		return i;
+	}
+
+	private static String first(String first, ListObjectsV2Result result) {
+		if (first != null) {
+			return first;
+		}
+		String key = result.getObjectSummaries().isEmpty() ? null : result.getObjectSummaries().get(0).getKey();
+		String folder = result.getCommonPrefixes().isEmpty() ? null : result.getCommonPrefixes().get(0);
+		if (key == null || folder == null) {
+			return key == null ? folder : key;
+		}
+		return compareKeys(key, folder) < 0 ? key : folder;
+	}
+
+	private static String last(String last, ListObjectsV2Result result) {
+		List<S3ObjectSummary> summaries = result.getObjectSummaries();
+		List<String> folders = result.getCommonPrefixes();
+		String key = summaries.isEmpty() ? null : summaries.get(summaries.size() - 1).getKey();
+		String folder = folders.isEmpty() ? null : folders.get(folders.size() - 1);
+		if (key == null || folder == null) {
+			return key == null ? (folder == null ? last : folder) : key;
+		}
+		return compareKeys(key, folder) > 0 ? key : folder;
+	}
+
+	/**
+	 * Compares keys like S3 does (UTF-8 binary order = code point order).
+	 * {@link String#compareTo(String)} differs for surrogate pairs
+	 */
+	static int compareKeys(String a, String b) {
+		int i = 0, j = 0;
+		while (i < a.length() && j < b.length()) {
+			int ca = a.codePointAt(i);
+			int cb = b.codePointAt(j);
+			if (ca != cb) {
+				return ca < cb ? -1 : 1;
+			}
+			i += Character.charCount(ca);
+			j += Character.charCount(cb);
+		}
+		return (a.length() - i) - (b.length() - j);
+	}
+
+	/**
+	 * Result of a delimiter listing of a subtree
+	 */
+	private static class Probe {
+
+		private final List<String> folders = new ArrayList<String>();
+
+		/**
+		 * First and last entry (key or folder) listed, null when empty
+		 */
+		private String first;
+		private String last;
+
+		/**
+		 * True when subtree has more entries than listed
+		 */
+		private boolean truncated;
+	}
+
+}
@@ -0,0 +1,237 @@
+package libs.aws.s3;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * Iterator over keys listed concurrently by {@link S3ListingEngine}. Every
+ * shard (key range) is listed by a worker thread which pushes keys into a
+ * bounded queue, so keys are available as soon as they arrive.
+ *
+ * In ordered mode every shard has its own queue and shards are read one after
+ * other, shards are non overlapping sorted ranges so keys come in S3 (UTF-8
+ * binary) order. A shard is started only when it is less than 'threads'
+ * shards ahead of the shard being read, so completed shards can't pile up in
+ * memory waiting for the reader. In unordered mode all shards share one queue.
+ *
+ * In both modes memory is bounded by queue capacity plus one listing page
+ * (1000 keys) per worker thread.
+ *
+ * Call {@link S3ListingIterator#close()} when iteration is stopped early, it
+ * stops worker threads. Worker failures are thrown from
+ * {@link S3ListingIterator#hasNext()}
+ *
+ * @author Kuldeep
+ *
+ */
+public class S3ListingIterator implements Iterator<S3ObjectSummary>, Closeable {
+
+	/**
+	 * Marker put in queue when shard is completely listed (or failed)
+	 */
+	private final static S3ObjectSummary END_OF_SHARD = new S3ObjectSummary();
+
+	private final Shard[] shards;
+
+	private final ExecutorService executor;
+
+	private final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+
+	/**
+	 * Index of shard being read, in unordered mode number of completed shards.
+	 * Changed by reader only, under {@link S3ListingIterator#window} lock
+	 */
+	private int currentShard = 0;
+
+	/**
+	 * Lock workers wait on (ordered mode) till their shard is in window
+	 */
+	private final Object window = new Object();
+
+	/**
+	 * Max shards started ahead of shard being read (ordered mode)
+	 */
+	private final int windowSize;
+
+	private S3ObjectSummary next;
+
+	S3ListingIterator(final AmazonS3 s3Client, final String bucket, final String prefix, List<String> splitPoints,
+			int threads, int queueCapacity, final boolean ordered) {
+		shards = new Shard[splitPoints.size() + 1];
+		BlockingQueue<S3ObjectSummary> sharedQueue = ordered ? null
+				: new LinkedBlockingQueue<S3ObjectSummary>(queueCapacity);
+		for (int i = 0; i < shards.length; i++) {
+			shards[i] = new Shard(i == 0 ? null : splitPoints.get(i - 1),
+					i == shards.length - 1 ? null : splitPoints.get(i),
+					ordered ? new LinkedBlockingQueue<S3ObjectSummary>(Math.max(1, queueCapacity / threads))
+							: sharedQueue);
+		}
+		windowSize = Math.min(threads, shards.length);
+		executor = Executors.newFixedThreadPool(windowSize, new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				// abandoned iterator should not stop JVM exit
+				Thread thread = new Thread(r, "s3-listing-" + bucket);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		// shards are started in order, so in ordered mode shard being read is
+		// always running or completed, only shards after it wait for window
+		for (int i = 0; i < shards.length; i++) {
+			final int index = i;
+			final Shard shard = shards[i];
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						if (ordered) {
+							awaitWindow(index);
+						}
+						shard.list(s3Client, bucket, prefix);
+					} catch (InterruptedException e) {
+						return; // closed
+					} catch (RuntimeException e) {
+						failure.compareAndSet(null, e);
+					}
+					try {
+						shard.queue.put(END_OF_SHARD);
+					} catch (InterruptedException e) {
+						// closed
+					}
+				}
+			});
+		}
+		executor.shutdown();
+	}
+
+	/**
+	 * @return number of shards listed in parallel
+	 */
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (next == null) {
+			if (currentShard >= shards.length) {
+				return false;
+			}
+			S3ObjectSummary summary;
+			try {
+				summary = shards[currentShard].queue.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				close();
+				throw new AmazonClientException("Listing interrupted", e);
+			}
+			if (summary == END_OF_SHARD) {
+				if (failure.get() != null) {
+					close();
+					throw failure.get();
+				}
+				advance(currentShard + 1);
+			} else {
+				next = summary;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public S3ObjectSummary next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		S3ObjectSummary summary = next;
+		next = null;
+		return summary;
+	}
+
+	/**
+	 * Stops all workers, iterator can't be used after close
+	 */
+	@Override
+	public void close() {
+		advance(shards.length);
+		next = null;
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Blocks worker till shard is less than window size ahead of shard being
+	 * read
+	 */
+	private void awaitWindow(int shard) throws InterruptedException {
+		synchronized (window) {
+			while (shard >= currentShard + windowSize) {
+				window.wait();
+			}
+		}
+	}
+
+	private void advance(int shard) {
+		synchronized (window) {
+			currentShard = shard;
+			window.notifyAll();
+		}
+	}
+
+	/**
+	 * Key range (startAfter, upTo] of listing
+	 */
+	private static class Shard {
+
+		/**
+		 * Exclusive lower bound, null for first shard
+		 */
+		private final String startAfter;
+
+		/**
+		 * Inclusive upper bound, null for last shard
+		 */
+		private final String upTo;
+
+		private final BlockingQueue<S3ObjectSummary> queue;
+
+		Shard(String startAfter, String upTo, BlockingQueue<S3ObjectSummary> queue) {
+			this.startAfter = startAfter;
+			this.upTo = upTo;
+			this.queue = queue;
+		}
+
+		void list(AmazonS3 s3Client, String bucket, String prefix) throws InterruptedException {
+			ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucket).withPrefix(prefix)
+					.withStartAfter(startAfter);
+			ListObjectsV2Result result;
+			do {
+				result = s3Client.listObjectsV2(request);
+				for (S3ObjectSummary summary : result.getObjectSummaries()) {
+					if (upTo != null && S3ListingEngine.compareKeys(summary.getKey(), upTo) > 0) {
+						return;
+					}
+					queue.put(summary);
+				}
+				request.setContinuationToken(result.getNextContinuationToken());
+			} while (result.isTruncated());
+		}
+	}
+
+}
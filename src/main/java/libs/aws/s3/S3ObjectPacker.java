@@ -0,0 +1,201 @@
+package libs.aws.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+/**
+ * Packs many small files into few big container objects. Every small file
+ * costs one PUT request (latency and request price), for millions of tiny files
+ * requests dominate. With packing, files smaller than
+ * {@link S3ObjectPacker#threshold} are appended to a local container file and
+ * when container reaches {@link S3ObjectPacker#containerSize} it is uploaded
+ * as one object along with its index. Bigger files are uploaded as normal
+ * objects using {@link S3Facade}.
+ *
+ * Layout under pack prefix - '&lt;id&gt;.pack' container and '&lt;id&gt;.idx'
+ * index, index has one line per file - offset, length and url encoded key
+ * separated by tab. Index is uploaded after container, so an index always
+ * points to existing container. Read packed files using {@link S3PackReader}.
+ *
+ * Call {@link S3ObjectPacker#close()} (or flush) at end, otherwise last
+ * container is not uploaded.
+ *
+ * @author Kuldeep
+ *
+ */
+public class S3ObjectPacker implements Closeable {
+
+	public final static String CONTAINER_SUFFIX = ".pack";
+
+	public final static String INDEX_SUFFIX = ".idx";
+
+	private final AmazonS3 s3Client;
+
+	private final String bucket;
+
+	private final String packPrefix;
+
+	/**
+	 * Files smaller than this are packed
+	 */
+	private final long threshold;
+
+	/**
+	 * Container is uploaded when it reaches this size
+	 */
+	private final long containerSize;
+
+	// current container, channel is null once container is sealed for upload
+	private String id;
+	private File containerFile;
+	private FileChannel container;
+	private StringBuilder index;
+	private boolean containerUploaded;
+
+	/**
+	 * @param s3Client
+	 * @param bucket
+	 * @param packPrefix
+	 *            - prefix for containers and indexes like 'packs/'
+	 * @param threshold
+	 *            - files smaller than this (bytes) are packed
+	 * @param containerSize
+	 *            - target size (bytes) of container
+	 */
+	public S3ObjectPacker(AmazonS3 s3Client, String bucket, String packPrefix, long threshold, long containerSize) {
+		if (threshold > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("threshold should be less than 2 GB");
+		}
+		this.s3Client = s3Client;
+		this.bucket = bucket;
+		this.packPrefix = packPrefix == null ? "" : packPrefix;
+		this.threshold = threshold;
+		this.containerSize = containerSize;
+	}
+
+	/**
+	 * Packs file when smaller than threshold, else uploads it as normal object.
+	 * Normal uploads don't hold packer lock, so other threads keep packing
+	 * meanwhile
+	 *
+	 * @param key
+	 *            - key used to read file later
+	 * @param file
+	 * @return true if file is packed, false if uploaded as normal object
+	 * @throws AmazonServiceException
+	 * @throws AmazonClientException
+	 * @throws IOException
+	 */
+	public boolean add(String key, File file) throws AmazonServiceException, AmazonClientException, IOException {
+		long length = file.length();
+		if (length >= threshold) {
+			S3Facade.instance().uploadObject(s3Client, bucket, key, file, null);
+			return false;
+		}
+		pack(key, file, length);
+		return true;
+	}
+
+	private synchronized void pack(String key, File file, long length)
+			throws AmazonServiceException, AmazonClientException, IOException {
+		if (containerFile != null && container == null) {
+			flush(); // upload of sealed container failed earlier, retry it
+		}
+		if (containerFile == null) {
+			id = UUID.randomUUID().toString();
+			containerFile = File.createTempFile("s3pack", CONTAINER_SUFFIX);
+			container = FileChannel.open(containerFile.toPath(), StandardOpenOption.WRITE);
+			index = new StringBuilder();
+			containerUploaded = false;
+		}
+		long offset = container.position();
+		try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long copied = 0;
+			while (copied < length) {
+				long count = source.transferTo(copied, length - copied, container);
+				if (count <= 0) {
+					container.truncate(offset);
+					container.position(offset);
+					throw new IOException("File " + file + " shrank while packing, expected " + length
+							+ " bytes, copied " + copied);
+				}
+				copied += count;
+			}
+			container.position(offset + copied);
+		}
+		index.append(offset).append('\t').append(length).append('\t').append(encode(key)).append('\n');
+		if (container.position() >= containerSize) {
+			flush();
+		}
+	}
+
+	/**
+	 * Uploads current container and its index, nothing if container is empty.
+	 * When upload fails, container and index are kept and uploaded (with same
+	 * id) by next flush/close/add
+	 *
+	 * @throws AmazonServiceException
+	 * @throws AmazonClientException
+	 * @throws IOException
+	 */
+	public synchronized void flush() throws AmazonServiceException, AmazonClientException, IOException {
+		if (containerFile == null) {
+			return;
+		}
+		if (container != null) {
+			// sealed, nothing is appended after this
+			FileChannel channel = container;
+			container = null;
+			channel.close();
+		}
+		if (!containerUploaded && containerFile.length() > 0) {
+			S3Facade.instance().uploadObject(s3Client, bucket, packPrefix + id + CONTAINER_SUFFIX, containerFile,
+					null);
+		}
+		containerUploaded = true;
+		// empty files only need index
+		if (index.length() > 0) {
+			byte[] indexBytes = index.toString().getBytes(StandardCharsets.UTF_8);
+			ObjectMetadata metaData = new ObjectMetadata();
+			metaData.setContentLength(indexBytes.length);
+			metaData.setContentType("text/plain");
+			s3Client.putObject(bucket, packPrefix + id + INDEX_SUFFIX, new ByteArrayInputStream(indexBytes),
+					metaData);
+		}
+		// both uploaded
+		containerFile.delete();
+		containerFile = null;
+		index = null;
+		id = null;
+	}
+
+	/**
+	 * Uploads last container
+	 */
+	@Override
+	public void close() throws IOException {
+		flush();
+	}
+
+	private static String encode(String key) {
+		try {
+			return URLEncoder.encode(key, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e); // UTF-8 is always there
+		}
+	}
+
+}
@@ -0,0 +1,331 @@
+package libs.aws.s3;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * Reads files packed by {@link S3ObjectPacker}. All indexes under pack prefix
+ * are loaded once into a cached catalog (key to container, offset and
+ * length), then every read is a single ranged GET into container.
+ *
+ * Catalog is refreshed when a key is not found and last load is older than
+ * {@link S3PackReader#RELOAD_INTERVAL_MILLIS}, so containers uploaded later
+ * are found as well. Refresh lists pack prefix and loads only indexes not
+ * loaded before. Indexes are fetched in parallel, up to
+ * {@link S3PackReader#LOAD_THREADS} GETs at a time. Thread safe.
+ *
+ * Catalog is kept on heap, about 130 bytes plus key length per packed file,
+ * e.g. 10 million files with 50 character keys need about 1.8 GB. A reload
+ * copies the catalog, so peak is twice that. Use separate pack prefixes (and
+ * readers) to keep a catalog small.
+ *
+ * When same key is packed more than once, entry of newest index (last
+ * modified, then later index key) wins, independent of listing order.
+ *
+ * @author Kuldeep
+ *
+ */
+public class S3PackReader {
+
+	private final static long RELOAD_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+	/**
+	 * Max indexes fetched at same time
+	 */
+	private final static int LOAD_THREADS = 8;
+
+	private final String bucket;
+
+	private final String packPrefix;
+
+	private final S3RequestHandler requestHandler = new S3RequestHandler();
+
+	private volatile Map<String, Entry> catalog;
+
+	private volatile long loadTime;
+
+	/**
+	 * Index keys already in catalog, guarded by reload lock
+	 */
+	private final Set<String> loadedIndexes = new HashSet<String>();
+
+	/**
+	 * @param bucket
+	 * @param packPrefix
+	 *            - same prefix as used by {@link S3ObjectPacker}
+	 */
+	public S3PackReader(String bucket, String packPrefix) {
+		this.bucket = bucket;
+		this.packPrefix = packPrefix == null ? "" : packPrefix;
+	}
+
+	/**
+	 * @return true if key is stored in a container
+	 * @throws AmazonServiceException
+	 * @throws AmazonClientException
+	 * @throws IOException
+	 */
+	public boolean isPacked(AmazonS3 s3Client, String key)
+			throws AmazonServiceException, AmazonClientException, IOException {
+		return lookup(s3Client, key) != null;
+	}
+
+	/**
+	 * Reads packed file
+	 *
+	 * @param s3Client
+	 * @param key
+	 *            - key given to {@link S3ObjectPacker#add(String, java.io.File)}
+	 * @return content (position 0, limit length) or null when key is not packed
+	 * @throws AmazonServiceException
+	 * @throws AmazonClientException
+	 * @throws IOException
+	 */
+	public ByteBuffer getObject(AmazonS3 s3Client, String key)
+			throws AmazonServiceException, AmazonClientException, IOException {
+		Entry entry = lookup(s3Client, key);
+		if (entry == null) {
+			return null;
+		}
+		ByteBuffer content = ByteBuffer.allocate(entry.length);
+		readRange(s3Client, entry, content);
+		content.flip();
+		return content;
+	}
+
+	/**
+	 * Reads packed file into given buffer, heap buffer is filled without extra
+	 * copy
+	 *
+	 * @return bytes read or -1 when key is not packed
+	 * @throws AmazonServiceException
+	 * @throws AmazonClientException
+	 * @throws IOException
+	 * @throws IllegalArgumentException
+	 *             - when buffer has less remaining space than file length
+	 */
+	public int readObject(AmazonS3 s3Client, String key, ByteBuffer destination)
+			throws AmazonServiceException, AmazonClientException, IOException {
+		Entry entry = lookup(s3Client, key);
+		if (entry == null) {
+			return -1;
+		}
+		if (destination.remaining() < entry.length) {
+			throw new IllegalArgumentException("Buffer too small, need " + entry.length + " bytes");
+		}
+		ByteBuffer range = destination.duplicate();
+		range.limit(range.position() + entry.length);
+		int read = readRange(s3Client, entry, range);
+		destination.position(destination.position() + read);
+		return read;
+	}
+
+	private int readRange(AmazonS3 s3Client, Entry entry, ByteBuffer destination)
+			throws AmazonServiceException, AmazonClientException, IOException {
+		int read = requestHandler.readRange(s3Client, bucket, entry.container, entry.offset, destination);
+		if (read < entry.length) {
+			throw new IOException("Container " + entry.container + " ended before packed file, expected "
+					+ entry.length + " bytes, read " + read);
+		}
+		return read;
+	}
+
+	private Entry lookup(AmazonS3 s3Client, String key)
+			throws AmazonServiceException, AmazonClientException, IOException {
+		if (catalog == null) {
+			reload(s3Client, false);
+		}
+		Entry entry = catalog.get(key);
+		if (entry == null && reload(s3Client, true)) {
+			entry = catalog.get(key);
+		}
+		return entry;
+	}
+
+	/**
+	 * Loads indexes under pack prefix which are not loaded yet
+	 *
+	 * @param onlyIfExpired
+	 *            - skip if loaded within reload interval
+	 * @return true if loaded
+	 */
+	private synchronized boolean reload(AmazonS3 s3Client, boolean onlyIfExpired)
+			throws AmazonServiceException, AmazonClientException, IOException {
+		if (catalog != null && (!onlyIfExpired || System.currentTimeMillis() - loadTime < RELOAD_INTERVAL_MILLIS)) {
+			return false;
+		}
+		List<S3ObjectSummary> newIndexes = new ArrayList<S3ObjectSummary>();
+		S3ListingIterator objects = new S3ListingEngine().list(s3Client, bucket, packPrefix, false);
+		try {
+			while (objects.hasNext()) {
+				S3ObjectSummary summary = objects.next();
+				if (summary.getKey().endsWith(S3ObjectPacker.INDEX_SUFFIX)
+						&& !loadedIndexes.contains(summary.getKey())) {
+					newIndexes.add(summary);
+				}
+			}
+		} finally {
+			objects.close();
+		}
+		List<Map<String, Entry>> loaded = loadIndexes(s3Client, newIndexes);
+		// readers keep using old catalog till new one is complete
+		Map<String, Entry> entries = catalog == null ? new HashMap<String, Entry>()
+				: new HashMap<String, Entry>(catalog);
+		for (Map<String, Entry> indexEntries : loaded) {
+			for (Map.Entry<String, Entry> indexEntry : indexEntries.entrySet()) {
+				Entry existing = entries.get(indexEntry.getKey());
+				if (existing == null || indexEntry.getValue().isNewerThan(existing)) {
+					entries.put(indexEntry.getKey(), indexEntry.getValue());
+				}
+			}
+		}
+		catalog = entries;
+		for (S3ObjectSummary index : newIndexes) {
+			loadedIndexes.add(index.getKey());
+		}
+		loadTime = System.currentTimeMillis();
+		return true;
+	}
+
+	/**
+	 * Fetches indexes in parallel
+	 *
+	 * @return entries of every index, same order as indexes
+	 */
+	private List<Map<String, Entry>> loadIndexes(final AmazonS3 s3Client, List<S3ObjectSummary> indexes)
+			throws AmazonServiceException, AmazonClientException, IOException {
+		List<Map<String, Entry>> loaded = new ArrayList<Map<String, Entry>>(indexes.size());
+		if (indexes.size() <= 1) {
+			for (S3ObjectSummary index : indexes) {
+				loaded.add(loadIndex(s3Client, index));
+			}
+			return loaded;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(LOAD_THREADS, indexes.size()),
+				new ThreadFactory() {
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "s3-pack-index-" + bucket);
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		try {
+			List<Future<Map<String, Entry>>> results = new ArrayList<Future<Map<String, Entry>>>(indexes.size());
+			for (final S3ObjectSummary index : indexes) {
+				results.add(executor.submit(new Callable<Map<String, Entry>>() {
+
+					@Override
+					public Map<String, Entry> call() throws IOException {
+						return loadIndex(s3Client, index);
+					}
+				}));
+			}
+			for (Future<Map<String, Entry>> result : results) {
+				loaded.add(get(result));
+			}
+			return loaded;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static Map<String, Entry> get(Future<Map<String, Entry>> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AmazonClientException("Index load interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new AmazonClientException(e.getCause());
+		}
+	}
+
+	private Map<String, Entry> loadIndex(AmazonS3 s3Client, S3ObjectSummary index)
+			throws AmazonServiceException, AmazonClientException, IOException {
+		Map<String, Entry> entries = new HashMap<String, Entry>();
+		String indexKey = index.getKey();
+		long indexTime = index.getLastModified() == null ? 0 : index.getLastModified().getTime();
+		String container = indexKey.substring(0, indexKey.length() - S3ObjectPacker.INDEX_SUFFIX.length())
+				+ S3ObjectPacker.CONTAINER_SUFFIX;
+		try (S3Object object = s3Client.getObject(bucket, indexKey);
+				BufferedReader reader = new BufferedReader(
+						new InputStreamReader(object.getObjectContent(), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t", 3);
+				if (fields.length < 3) {
+					continue;
+				}
+				String key = URLDecoder.decode(fields[2], "UTF-8");
+				Entry entry = new Entry(container, Long.parseLong(fields[0]), Integer.parseInt(fields[1]),
+						indexKey, indexTime);
+				Entry existing = entries.get(key);
+				if (existing == null || entry.isNewerThan(existing)) {
+					entries.put(key, entry);
+				}
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Location of packed file
+	 */
+	private static class Entry {
+
+		private final String container;
+		private final long offset;
+		private final int length;
+
+		// index which has this entry, used to pick one of duplicate keys
+		private final String index;
+		private final long indexTime;
+
+		Entry(String container, long offset, int length, String index, long indexTime) {
+			this.container = container;
+			this.offset = offset;
+			this.length = length;
+			this.index = index;
+			this.indexTime = indexTime;
+		}
+
+		boolean isNewerThan(Entry other) {
+			if (indexTime != other.indexTime) {
+				return indexTime > other.indexTime;
+			}
+			return S3ListingEngine.compareKeys(index, other.index) > 0;
+		}
+	}
+
+}
@@ -1,16 +1,25 @@
 package libs.aws.s3;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
 import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
 import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
 import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
@@ -19,8 +28,47 @@ import com.amazonaws.services.s3.model.PartETag;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.UploadPartRequest;
 
+import libs.aws.s3.util.MappedFilePartSource;
+import libs.aws.s3.util.PooledFileInputStream;
+import libs.aws.s3.util.TransferBufferPool;
+
+/**
+ * Makes S3 calls. All file reads/writes and range reads use buffers borrowed
+ * from {@link TransferBufferPool}, direct buffers for file reads and heap
+ * buffers for object content (content is a heap stream, so a direct buffer
+ * would only add a copy). Every file stream/channel is closed before method
+ * returns
+ * 
+ * @author Kuldeep
+ *
+ */
 public class S3RequestHandler {
 
+	/**
+	 * Buffer used to copy downloaded content to file
+	 */
+	private final static int DOWNLOAD_BUFFER_SIZE = 1024 * 1024;
+
+	/**
+	 * Buffer used to copy range into a direct destination
+	 */
+	private final static int RANGE_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Multipart upload part size
+	 */
+	private final static long PART_SIZE = 1024 * 1024 * 10; // 10 mb blocks
+
+	/**
+	 * S3 limit of parts in a multipart upload
+	 */
+	private final static int MAX_PARTS = 10000;
+
+	/**
+	 * Parts of a multipart upload sent at same time
+	 */
+	private final static int PARALLEL_PARTS = 4;
+
 	/**
 	 * Upload file as simple put request
 	 * 
@@ -42,7 +90,9 @@ public class S3RequestHandler {
 		if (metaData.getContentLength() < 1) {
 			metaData.setContentLength(file.length());
 		}
-		s3Client.putObject(bucketName, remoteFileName, new FileInputStream(file), metaData);
+		try (InputStream in = new PooledFileInputStream(file)) {
+			s3Client.putObject(bucketName, remoteFileName, in, metaData);
+		}
 		// can utilize return for more specific handling
 		return true;
 	}
@@ -50,7 +100,9 @@ public class S3RequestHandler {
 	/**
 	 * Uploads file as multipart. To decide whether to use simple put object or
 	 * multipart, use
-	 * {@link S3Facade#uploadObject(AmazonS3, String, String, File, ObjectMetadata)}
+	 * {@link S3Facade#uploadObject(AmazonS3, String, String, File, ObjectMetadata)}.
+	 * File is memory mapped ({@link MappedFilePartSource}) and
+	 * {@link S3RequestHandler#PARALLEL_PARTS} parts are uploaded at same time
 	 * 
 	 * @param s3Client
 	 * @param bucketName
@@ -68,38 +120,24 @@ public class S3RequestHandler {
 
 		InitiateMultipartUploadRequest initRequest = new InitiateMultipartUploadRequest(bucketName, remoteFileName);
 		InitiateMultipartUploadResult initResponse = s3Client.initiateMultipartUpload(initRequest);
-		try {
-			long contentLength = file.length();
-			long partSize = 1024 * 1024 * 10; // 10 mb blocks
-			long filePosition = 0;
-			long numberOfParts = contentLength / partSize;
-			boolean extraBlock = false;
-			long extraBlockValue = contentLength % partSize;
-			if (extraBlockValue > 0) {
-				extraBlock = true;
-			}
-			int i = 1;
-			for (i = 1; i < numberOfParts; i++) {
-				UploadPartRequest uploadRequest = new UploadPartRequest().withBucketName(bucketName)
-						.withKey(remoteFileName).withUploadId(initResponse.getUploadId()).withObjectMetadata(metaData)
-						.withPartNumber(i).withFileOffset(filePosition).withFile(file).withPartSize(partSize);
-				filePosition += partSize;
-				partETags.add(s3Client.uploadPart(uploadRequest).getPartETag());
-			}
-			if (extraBlock) {
-				UploadPartRequest uploadRequest = new UploadPartRequest().withBucketName(bucketName)
-						.withKey(remoteFileName).withUploadId(initResponse.getUploadId()).withPartNumber(i)
-						.withFileOffset(filePosition).withFile(file).withPartSize(extraBlockValue);
-
-				partETags.add(s3Client.uploadPart(uploadRequest).getPartETag());
-
+		// file opened and mapped once, every part is a slice of mapping
+		try (MappedFilePartSource source = new MappedFilePartSource(file, partSize(file.length()))) {
+			int partCount = source.getPartCount();
+			if (partCount == 1 || PARALLEL_PARTS == 1) {
+				for (int i = 1; i <= partCount; i++) {
+					partETags.add(uploadPart(s3Client, bucketName, remoteFileName, initResponse.getUploadId(), metaData,
+							source, i));
+				}
+			} else {
+				partETags.addAll(uploadPartsInParallel(s3Client, bucketName, remoteFileName,
+						initResponse.getUploadId(), metaData, source));
 			}
 
 			CompleteMultipartUploadRequest compRequest = new CompleteMultipartUploadRequest(bucketName, remoteFileName,
 					initResponse.getUploadId(), partETags);
 
 			s3Client.completeMultipartUpload(compRequest);
-		} catch (AmazonServiceException e) {
+		} catch (AmazonClientException | IOException e) {
 
 			s3Client.abortMultipartUpload(
 					new AbortMultipartUploadRequest(bucketName, remoteFileName, initResponse.getUploadId()));
@@ -108,6 +146,71 @@ public class S3RequestHandler {
 		return true;
 	}
 
+	/**
+	 * @return {@link S3RequestHandler#PART_SIZE}, or bigger for files which
+	 *         would need more than {@link S3RequestHandler#MAX_PARTS} parts
+	 */
+	private static long partSize(long contentLength) {
+		return Math.max(PART_SIZE, (contentLength + MAX_PARTS - 1) / MAX_PARTS);
+	}
+
+	/**
+	 * Uploads all parts using {@link S3RequestHandler#PARALLEL_PARTS} threads
+	 * 
+	 * @return part ETags in part number order
+	 */
+	private List<PartETag> uploadPartsInParallel(final AmazonS3 s3Client, final String bucketName,
+			final String remoteFileName, final String uploadId, final ObjectMetadata metaData,
+			final MappedFilePartSource source) throws AmazonClientException, IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(PARALLEL_PARTS, source.getPartCount()));
+		try {
+			List<Future<PartETag>> futures = new ArrayList<Future<PartETag>>(source.getPartCount());
+			for (int i = 1; i <= source.getPartCount(); i++) {
+				final int partNumber = i;
+				futures.add(executor.submit(new Callable<PartETag>() {
+
+					@Override
+					public PartETag call() throws Exception {
+						return uploadPart(s3Client, bucketName, remoteFileName, uploadId, metaData, source, partNumber);
+					}
+				}));
+			}
+			List<PartETag> partETags = new ArrayList<PartETag>(futures.size());
+			for (Future<PartETag> future : futures) {
+				partETags.add(future.get());
+			}
+			return partETags;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AmazonClientException("Multipart upload interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof AmazonClientException) {
+				throw (AmazonClientException) e.getCause();
+			}
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new AmazonClientException("Part upload failed", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Uploads single part from mapped file
+	 */
+	private PartETag uploadPart(AmazonS3 s3Client, String bucketName, String remoteFileName, String uploadId,
+			ObjectMetadata metaData, MappedFilePartSource source, int partNumber)
+			throws AmazonServiceException, IOException {
+		UploadPartRequest uploadRequest = new UploadPartRequest().withBucketName(bucketName).withKey(remoteFileName)
+				.withUploadId(uploadId).withObjectMetadata(metaData).withPartNumber(partNumber)
+				.withPartSize(source.getPartSize(partNumber)).withLastPart(partNumber == source.getPartCount());
+		try (InputStream in = source.openPart(partNumber)) {
+			uploadRequest.setInputStream(in);
+			return s3Client.uploadPart(uploadRequest).getPartETag();
+		}
+	}
+
 	/**
 	 * Returns object metadata using S3 client method call
 	 * 
@@ -123,6 +226,23 @@ public class S3RequestHandler {
 		return s3Client.getObjectMetadata(bucket, file);
 	}
 
+	/**
+	 * Returns metadata of given version of object
+	 * 
+	 * @param s3Client
+	 * @param bucket
+	 * @param file
+	 * @param versionId
+	 *            - null for latest version
+	 * @return
+	 * @throws AmazonServiceException
+	 * @throws AmazonClientException
+	 */
+	public ObjectMetadata getObjectMetaData(AmazonS3 s3Client, String bucket, String file, String versionId)
+			throws AmazonServiceException, AmazonClientException {
+		return s3Client.getObjectMetadata(new GetObjectMetadataRequest(bucket, file, versionId));
+	}
+
 	/**
 	 * Returns object  using S3 client method call
 	 * 
@@ -154,13 +274,150 @@ public class S3RequestHandler {
 	 */
 	public S3DataResponse getObject(AmazonS3 s3Client, String bucket, String file, File destination)
 			throws AmazonServiceException, AmazonClientException, IOException {
+		return getObject(s3Client, bucket, file, null, destination);
+	}
+
+	/**
+	 * Stores given version of object into file
+	 * 
+	 * @param s3Client
+	 * @param bucket
+	 * @param file
+	 * @param versionId
+	 *            - null for latest version
+	 * @param destination
+	 *            - file to store output to
+	 * @return
+	 * @throws AmazonServiceException
+	 * @throws AmazonClientException
+	 * @throws IOException
+	 */
+	public S3DataResponse getObject(AmazonS3 s3Client, String bucket, String file, String versionId,
+			File destination) throws AmazonServiceException, AmazonClientException, IOException {
 		S3DataResponse response = new S3DataResponse();
 		response.setResponseStoredToFile(true);
-		GetObjectRequest request = new GetObjectRequest(bucket, file);
-		s3Client.getObject(request, destination);
-		response.setFile(destination);
-		response.setS3Object(s3Client.getObject(bucket, file));
+		GetObjectRequest request = new GetObjectRequest(bucket, file, versionId);
+		try (S3Object object = s3Client.getObject(request);
+				InputStream in = object.getObjectContent();
+				FileChannel out = FileChannel.open(destination.toPath(), StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = TransferBufferPool.instance().acquireHeap(DOWNLOAD_BUFFER_SIZE);
+			try {
+				int count;
+				while ((count = in.read(buffer.array(), 0, buffer.capacity())) >= 0) {
+					buffer.limit(count);
+					while (buffer.hasRemaining()) {
+						out.write(buffer);
+					}
+					buffer.clear();
+				}
+			} finally {
+				TransferBufferPool.instance().release(buffer);
+			}
+			response.setFile(destination);
+			// content is closed with object, object still carries meta data
+			response.setS3Object(object);
+		}
+		return response;
+	}
+
+	/**
+	 * Reads whole object (given version) into memory. Content is read only
+	 * buffer, so same response can be shared by many threads
+	 * 
+	 * @param s3Client
+	 * @param bucket
+	 * @param file
+	 * @param versionId
+	 *            - null for latest version
+	 * @return response with {@link S3DataResponse#getContent()}, S3 object is
+	 *         null
+	 * @throws AmazonServiceException
+	 * @throws AmazonClientException
+	 * @throws IOException
+	 */
+	public S3DataResponse getObjectContent(AmazonS3 s3Client, String bucket, String file, String versionId)
+			throws AmazonServiceException, AmazonClientException, IOException {
+		S3DataResponse response = new S3DataResponse();
+		try (S3Object object = s3Client.getObject(new GetObjectRequest(bucket, file, versionId));
+				InputStream in = object.getObjectContent()) {
+			long length = object.getObjectMetadata().getContentLength();
+			if (length > Integer.MAX_VALUE) {
+				throw new IOException("Object too big for memory, " + length + " bytes");
+			}
+			byte[] content = new byte[(int) length];
+			int read = 0;
+			while (read < content.length) {
+				int count = in.read(content, read, content.length - read);
+				if (count < 0) {
+					throw new IOException("Object ended before content length, read " + read + " bytes");
+				}
+				read += count;
+			}
+			// no S3 object, its content stream is consumed and closed here
+			response.setContent(ByteBuffer.wrap(content));
+		}
 		return response;
 	}
 
+	/**
+	 * Reads range of object into destination buffer, range starts at given
+	 * position and its length is destination's remaining bytes. Heap buffer is
+	 * filled straight from content stream, direct buffer through a pooled heap
+	 * buffer
+	 * 
+	 * @param s3Client
+	 * @param bucket
+	 * @param file
+	 * @param start
+	 *            - first byte of range
+	 * @param destination
+	 *            - buffer to fill
+	 * @return bytes read, less than requested if object ends before
+	 * @throws AmazonServiceException
+	 * @throws AmazonClientException
+	 * @throws IOException
+	 */
+	public int readRange(AmazonS3 s3Client, String bucket, String file, long start, ByteBuffer destination)
+			throws AmazonServiceException, AmazonClientException, IOException {
+		if (!destination.hasRemaining()) {
+			return 0;
+		}
+		GetObjectRequest request = new GetObjectRequest(bucket, file).withRange(start,
+				start + destination.remaining() - 1);
+		int read = 0;
+		try (S3Object object = s3Client.getObject(request); InputStream in = object.getObjectContent()) {
+			if (destination.hasArray()) {
+				byte[] array = destination.array();
+				while (destination.hasRemaining()) {
+					int count = in.read(array, destination.arrayOffset() + destination.position(),
+							destination.remaining());
+					if (count < 0) {
+						break;
+					}
+					destination.position(destination.position() + count);
+					read += count;
+				}
+			} else {
+				ByteBuffer buffer = TransferBufferPool.instance()
+						.acquireHeap(Math.min(RANGE_BUFFER_SIZE, destination.remaining()));
+				try {
+					while (destination.hasRemaining()) {
+						int count = in.read(buffer.array(), 0, Math.min(buffer.capacity(), destination.remaining()));
+						if (count < 0) {
+							break;
+						}
+						buffer.limit(count);
+						destination.put(buffer);
+						buffer.clear();
+						read += count;
+					}
+				} finally {
+					TransferBufferPool.instance().release(buffer);
+				}
+			}
+		}
+		return read;
+	}
+
 }
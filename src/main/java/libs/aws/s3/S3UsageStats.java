@@ -0,0 +1,137 @@
+package libs.aws.s3;
+
+import com.amazonaws.services.s3.model.StorageClass;
+
+/**
+ * Aggregated size and age of objects sharing a prefix or a tag, see
+ * {@link S3LifecycleAdvisor}. Only primitive counters are kept, so memory does
+ * not depend on number of objects
+ *
+ * @author Kuldeep
+ *
+ */
+public class S3UsageStats {
+
+	/**
+	 * Upper bound (days, exclusive) of every age bucket, last bucket is
+	 * everything older
+	 */
+	public final static int[] AGE_BUCKET_DAYS = { 30, 90, 180, 365 };
+
+	/**
+	 * Prefix (like logs/2018/) or tag (like archive=true) of this stats
+	 */
+	private final String name;
+
+	private long objectCount;
+
+	private long totalBytes;
+
+	/**
+	 * Bytes in every age bucket, see {@link S3UsageStats#AGE_BUCKET_DAYS}
+	 */
+	private final long[] bytesByAge = new long[AGE_BUCKET_DAYS.length + 1];
+
+	/**
+	 * Same as {@link S3UsageStats#bytesByAge} but only STANDARD storage class,
+	 * these are the bytes which can be moved by a lifecycle transition
+	 */
+	private final long[] standardBytesByAge = new long[AGE_BUCKET_DAYS.length + 1];
+
+	public S3UsageStats(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Adds an object to stats
+	 *
+	 * @param size
+	 *            - bytes
+	 * @param ageDays
+	 *            - days since last modified
+	 * @param storageClass
+	 *            - S3 storage class, null means STANDARD
+	 */
+	void add(long size, long ageDays, String storageClass) {
+		int bucket = ageBucket(ageDays);
+		objectCount++;
+		totalBytes += size;
+		bytesByAge[bucket] += size;
+		if (storageClass == null || storageClass.isEmpty()
+				|| StorageClass.Standard.toString().equals(storageClass)) {
+			standardBytesByAge[bucket] += size;
+		}
+	}
+
+	/**
+	 * Adds counters of other stats, e.g. child prefix into parent prefix
+	 */
+	void add(S3UsageStats other) {
+		objectCount += other.objectCount;
+		totalBytes += other.totalBytes;
+		for (int i = 0; i < bytesByAge.length; i++) {
+			bytesByAge[i] += other.bytesByAge[i];
+			standardBytesByAge[i] += other.standardBytesByAge[i];
+		}
+	}
+
+	private static int ageBucket(long ageDays) {
+		for (int i = 0; i < AGE_BUCKET_DAYS.length; i++) {
+			if (ageDays < AGE_BUCKET_DAYS[i]) {
+				return i;
+			}
+		}
+		return AGE_BUCKET_DAYS.length;
+	}
+
+	/**
+	 * @return STANDARD class bytes which are at least given days old. Days are
+	 *         rounded down to age bucket boundary
+	 */
+	public long getStandardBytesOlderThan(int days) {
+		long bytes = 0;
+		for (int i = ageBucket(days); i < standardBytesByAge.length; i++) {
+			bytes += standardBytesByAge[i];
+		}
+		return bytes;
+	}
+
+	public long getStandardBytes() {
+		return getStandardBytesOlderThan(0);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getObjectCount() {
+		return objectCount;
+	}
+
+	public long getTotalBytes() {
+		return totalBytes;
+	}
+
+	public long getAverageObjectSize() {
+		return objectCount == 0 ? 0 : totalBytes / objectCount;
+	}
+
+	public long[] getBytesByAge() {
+		return bytesByAge.clone();
+	}
+
+	public long[] getStandardBytesByAge() {
+		return standardBytesByAge.clone();
+	}
+
+	@Override
+	public String toString() {
+		StringBuffer ages = new StringBuffer();
+		for (int i = 0; i < bytesByAge.length; i++) {
+			ages.append(i < AGE_BUCKET_DAYS.length ? "<" + AGE_BUCKET_DAYS[i] : ">=" + AGE_BUCKET_DAYS[i - 1]);
+			ages.append("d:" + bytesByAge[i] + " ");
+		}
+		return "S3UsageStats [name=" + name + ", objectCount=" + objectCount + ", totalBytes=" + totalBytes
+				+ ", bytesByAge=" + ages.toString().trim() + "]";
+	}
+}
@@ -0,0 +1,118 @@
+package libs.aws.s3.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Provides multipart upload parts of a file as slices of memory mapped file.
+ * File is opened once and mapped (read only) in windows, single mapping can't
+ * be bigger than 2 GB. Window size is a multiple of part size, so a part is
+ * always inside one window. Windows are mapped lazily when first part of
+ * window is opened and can be used by many threads (every part gets its own
+ * slice).
+ *
+ * Parts are read by page cache directly, no per part file open/seek and no copy
+ * to intermediate buffer.
+ *
+ * Note - Java 8 has no API to unmap, mapping is released when buffers are
+ * garbage collected. Mapping only takes address space, not heap.
+ *
+ * @author Kuldeep
+ *
+ */
+public class MappedFilePartSource implements Closeable {
+
+	/**
+	 * Max size of single mapping
+	 */
+	private final static long MAX_WINDOW_SIZE = 1024L * 1024 * 1024; // 1 GB
+
+	private final FileChannel channel;
+
+	private final long length;
+
+	private final long partSize;
+
+	private final long windowSize;
+
+	private final MappedByteBuffer[] windows;
+
+	/**
+	 * @param file
+	 *            - file to upload
+	 * @param partSize
+	 *            - size of every part except last, at most
+	 *            {@link MappedFilePartSource#MAX_WINDOW_SIZE}
+	 * @throws IOException
+	 */
+	public MappedFilePartSource(File file, long partSize) throws IOException {
+		if (partSize < 1 || partSize > MAX_WINDOW_SIZE) {
+			throw new IllegalArgumentException("partSize should be between 1 and " + MAX_WINDOW_SIZE);
+		}
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		this.length = channel.size();
+		this.partSize = partSize;
+		this.windowSize = (MAX_WINDOW_SIZE / partSize) * partSize;
+		this.windows = new MappedByteBuffer[(int) ((length + windowSize - 1) / windowSize)];
+	}
+
+	/**
+	 * @return number of parts, last part can be smaller
+	 */
+	public int getPartCount() {
+		return (int) ((length + partSize - 1) / partSize);
+	}
+
+	/**
+	 * @param partNumber
+	 *            - 1 based, like S3 part number
+	 * @return size of part
+	 */
+	public long getPartSize(int partNumber) {
+		long offset = (partNumber - 1) * partSize;
+		return Math.min(partSize, length - offset);
+	}
+
+	/**
+	 * @param partNumber
+	 *            - 1 based, like S3 part number
+	 * @return stream over part's slice of mapping
+	 * @throws IOException
+	 */
+	public InputStream openPart(int partNumber) throws IOException {
+		if (partNumber < 1 || partNumber > getPartCount()) {
+			throw new IllegalArgumentException("Invalid part number " + partNumber);
+		}
+		long offset = (partNumber - 1) * partSize;
+		int windowIndex = (int) (offset / windowSize);
+		ByteBuffer part = window(windowIndex).duplicate();
+		int start = (int) (offset - windowIndex * windowSize);
+		part.limit(start + (int) getPartSize(partNumber));
+		part.position(start);
+		return new ByteBufferInputStream(part.slice());
+	}
+
+	private synchronized MappedByteBuffer window(int index) throws IOException {
+		if (windows[index] == null) {
+			long position = index * windowSize;
+			windows[index] = channel.map(MapMode.READ_ONLY, position, Math.min(windowSize, length - position));
+		}
+		return windows[index];
+	}
+
+	/**
+	 * Closes file, already opened part streams still work
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+}
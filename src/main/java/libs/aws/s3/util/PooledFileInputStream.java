@@ -0,0 +1,166 @@
+package libs.aws.s3.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Input stream over a file, reads file channel with positional reads into a
+ * buffer borrowed from {@link TransferBufferPool}. Multipart parts are read
+ * using {@link MappedFilePartSource} instead.
+ *
+ * Supports mark/reset (just remembers position), so SDK can retry a request
+ * without buffering content again.
+ *
+ * @author Kuldeep
+ *
+ */
+public class PooledFileInputStream extends InputStream {
+
+	private final static int CHUNK_SIZE = 256 * 1024;
+
+	private final FileChannel channel;
+
+	/**
+	 * End (exclusive) of file
+	 */
+	private final long end;
+
+	/**
+	 * File position of next byte to return
+	 */
+	private long position;
+
+	private long mark;
+
+	private ByteBuffer buffer;
+
+	private boolean closed = false;
+
+	/**
+	 * Whole file, file is opened here and closed with stream
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public PooledFileInputStream(File file) throws IOException {
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		this.position = 0;
+		this.end = channel.size();
+		this.mark = 0;
+		buffer = TransferBufferPool.instance().acquire((int) Math.min(CHUNK_SIZE, Math.max(1, end - position)));
+		buffer.limit(0); // nothing read yet
+	}
+
+	/**
+	 * Fills buffer from current position
+	 *
+	 * @return false at end of file
+	 */
+	private boolean fill() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+		if (buffer.hasRemaining()) {
+			return true;
+		}
+		if (position >= end) {
+			return false;
+		}
+		buffer.clear();
+		if (end - position < buffer.capacity()) {
+			buffer.limit((int) (end - position));
+		}
+		long readPosition = position;
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, readPosition);
+			if (read < 0) {
+				break; // file truncated
+			}
+			readPosition += read;
+		}
+		buffer.flip();
+		return buffer.hasRemaining();
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!fill()) {
+			return -1;
+		}
+		position++;
+		return buffer.get() & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!fill()) {
+			return -1;
+		}
+		int count = Math.min(len, buffer.remaining());
+		buffer.get(b, off, count);
+		position += count;
+		return count;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		if (n <= 0) {
+			return 0;
+		}
+		long skipped = Math.min(n, end - position);
+		seek(position + skipped);
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (int) Math.min(Integer.MAX_VALUE, end - position);
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+		mark = position;
+	}
+
+	@Override
+	public synchronized void reset() throws IOException {
+		seek(mark);
+	}
+
+	private void seek(long newPosition) {
+		long bufferStart = position - buffer.position();
+		if (newPosition >= bufferStart && newPosition <= bufferStart + buffer.limit()) {
+			buffer.position((int) (newPosition - bufferStart));
+		} else {
+			buffer.limit(0);
+		}
+		position = newPosition;
+	}
+
+	/**
+	 * Returns buffer to pool and closes channel. Can be called more than once
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		TransferBufferPool.instance().release(buffer);
+		buffer = null;
+		channel.close();
+	}
+
+}
@@ -0,0 +1,63 @@
+package libs.aws.s3.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simple rate limiter shared between worker threads. Every call to
+ * {@link RateLimiter#acquire()} reserves the next free slot and sleeps until
+ * that slot is reached, so calls are spread evenly over time instead of being
+ * sent in bursts. Useful to stay below S3 request rate limits (e.g. 3,500
+ * write/5,500 read requests per second per prefix) when running many threads
+ *
+ * @author Kuldeep
+ *
+ */
+public class RateLimiter {
+
+	/**
+	 * Nanos between two permits, 0 means no limit
+	 */
+	private final long intervalNanos;
+
+	/**
+	 * Time (nano) when next permit is available
+	 */
+	private long nextFreeSlot = System.nanoTime();
+
+	/**
+	 * @param permitsPerSecond
+	 *            - allowed calls per second. Zero or negative value disables
+	 *            limit
+	 */
+	public RateLimiter(double permitsPerSecond) {
+		if (permitsPerSecond <= 0) {
+			intervalNanos = 0;
+		} else {
+			intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+		}
+	}
+
+	/**
+	 * Blocks until a permit is available
+	 *
+	 * @throws InterruptedException
+	 */
+	public void acquire() throws InterruptedException {
+		if (intervalNanos == 0) {
+			return;
+		}
+		long wait;
+		synchronized (this) {
+			long now = System.nanoTime();
+			if (nextFreeSlot < now) {
+				nextFreeSlot = now;
+			}
+			wait = nextFreeSlot - now;
+			nextFreeSlot += intervalNanos;
+		}
+		if (wait > 0) {
+			TimeUnit.NANOSECONDS.sleep(wait);
+		}
+	}
+
+}
@@ -0,0 +1,236 @@
+package libs.aws.s3.util;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of byte buffers used by upload, download and range read paths. Direct
+ * (off heap) buffers are used to read files for upload, a direct buffer saves
+ * a copy on channel reads. Heap buffers ({@link TransferBufferPool#acquireHeap(int)})
+ * are used to copy object content, content is a heap stream so its bytes are
+ * read straight into buffer's array. Buffers are grouped in size classes, see
+ * {@link TransferBufferPool#SIZE_CLASSES}. Every thread keeps one free buffer
+ * per size class (no locking for thread which keeps reusing same buffer size)
+ * and extra free buffers go to a shared queue, up to
+ * {@link TransferBufferPool#MAX_SHARED_PER_CLASS} per class. So in steady state
+ * no new buffer is allocated per transfer/part.
+ *
+ * Always return a buffer with {@link TransferBufferPool#release(ByteBuffer)}
+ * (in finally block) and don't use it after release.
+ *
+ * @author Kuldeep
+ *
+ */
+public class TransferBufferPool {
+
+	/**
+	 * Buffer sizes, requested size is rounded up to next class. Bigger requests
+	 * are allocated without pooling
+	 */
+	public final static int[] SIZE_CLASSES = { 64 * 1024, 256 * 1024, 1024 * 1024, 4 * 1024 * 1024 };
+
+	/**
+	 * Max free buffers kept in shared queue per size class (and kind)
+	 */
+	private final static int MAX_SHARED_PER_CLASS = 64;
+
+	/**
+	 * Number of pools, direct buffers use index of size class and heap buffers
+	 * index of size class + {@link TransferBufferPool#SIZE_CLASSES} length
+	 */
+	private final static int POOLS = SIZE_CLASSES.length * 2;
+
+	/**
+	 * Declared after {@link TransferBufferPool#POOLS}, constructor uses it
+	 */
+	private final static TransferBufferPool instance = new TransferBufferPool();
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private final Queue<ByteBuffer>[] shared = new Queue[POOLS];
+
+	private final AtomicInteger[] sharedCount = new AtomicInteger[POOLS];
+
+	private final ThreadLocal<ByteBuffer[]> threadCache = new ThreadLocal<ByteBuffer[]>() {
+
+		@Override
+		protected ByteBuffer[] initialValue() {
+			return new ByteBuffer[POOLS];
+		}
+	};
+
+	// statistics
+	private final LongAdder allocations = new LongAdder();
+	private final LongAdder allocatedBytes = new LongAdder();
+	private final LongAdder allocatedHeapBytes = new LongAdder();
+	private final LongAdder threadCacheHits = new LongAdder();
+	private final LongAdder sharedHits = new LongAdder();
+	private final LongAdder unpooled = new LongAdder();
+	private final LongAdder discarded = new LongAdder();
+	private final LongAdder outstanding = new LongAdder();
+
+	public final static TransferBufferPool instance() {
+		return instance;
+	}
+
+	private TransferBufferPool() {
+		for (int i = 0; i < POOLS; i++) {
+			shared[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+			sharedCount[i] = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * Borrows a cleared direct buffer with capacity of at least size
+	 *
+	 * @param size
+	 *            - minimum capacity in bytes
+	 * @return buffer, position 0 and limit = capacity
+	 */
+	public ByteBuffer acquire(int size) {
+		return acquire(size, true);
+	}
+
+	/**
+	 * Borrows a cleared heap buffer (has array) with capacity of at least size
+	 *
+	 * @param size
+	 *            - minimum capacity in bytes
+	 * @return buffer, position 0 and limit = capacity
+	 */
+	public ByteBuffer acquireHeap(int size) {
+		return acquire(size, false);
+	}
+
+	private ByteBuffer acquire(int size, boolean direct) {
+		int sizeClass = sizeClass(size);
+		if (sizeClass < 0) {
+			unpooled.increment();
+			return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+		}
+		int pool = direct ? sizeClass : sizeClass + SIZE_CLASSES.length;
+		ByteBuffer[] cache = threadCache.get();
+		ByteBuffer buffer = cache[pool];
+		if (buffer != null) {
+			cache[pool] = null;
+			threadCacheHits.increment();
+		} else {
+			buffer = shared[pool].poll();
+			if (buffer != null) {
+				sharedCount[pool].decrementAndGet();
+				sharedHits.increment();
+			} else if (direct) {
+				buffer = ByteBuffer.allocateDirect(SIZE_CLASSES[sizeClass]);
+				allocations.increment();
+				allocatedBytes.add(buffer.capacity());
+			} else {
+				buffer = ByteBuffer.allocate(SIZE_CLASSES[sizeClass]);
+				allocations.increment();
+				allocatedHeapBytes.add(buffer.capacity());
+			}
+		}
+		outstanding.increment();
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Returns buffer to pool, null is ignored
+	 *
+	 * @param buffer
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null || buffer.isReadOnly() || (!buffer.isDirect() && buffer.arrayOffset() != 0)) {
+			return; // read only view or slice, not from pool
+		}
+		int sizeClass = sizeClass(buffer.capacity());
+		if (sizeClass < 0 || SIZE_CLASSES[sizeClass] != buffer.capacity()) {
+			return; // not from pool, GC frees it
+		}
+		int pool = buffer.isDirect() ? sizeClass : sizeClass + SIZE_CLASSES.length;
+		outstanding.decrement();
+		ByteBuffer[] cache = threadCache.get();
+		if (cache[pool] == null) {
+			cache[pool] = buffer;
+		} else if (sharedCount[pool].incrementAndGet() <= MAX_SHARED_PER_CLASS) {
+			shared[pool].offer(buffer);
+		} else {
+			sharedCount[pool].decrementAndGet();
+			discarded.increment();
+		}
+	}
+
+	private static int sizeClass(int size) {
+		for (int i = 0; i < SIZE_CLASSES.length; i++) {
+			if (size <= SIZE_CLASSES[i]) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return number of pooled buffers created
+	 */
+	public long getAllocations() {
+		return allocations.sum();
+	}
+
+	/**
+	 * @return off heap bytes allocated for pooled buffers
+	 */
+	public long getAllocatedBytes() {
+		return allocatedBytes.sum();
+	}
+
+	/**
+	 * @return heap bytes allocated for pooled buffers
+	 */
+	public long getAllocatedHeapBytes() {
+		return allocatedHeapBytes.sum();
+	}
+
+	/**
+	 * @return acquires served from calling thread's cache
+	 */
+	public long getThreadCacheHits() {
+		return threadCacheHits.sum();
+	}
+
+	/**
+	 * @return acquires served from shared queue
+	 */
+	public long getSharedHits() {
+		return sharedHits.sum();
+	}
+
+	/**
+	 * @return acquires bigger than largest size class (not pooled)
+	 */
+	public long getUnpooled() {
+		return unpooled.sum();
+	}
+
+	/**
+	 * @return released buffers dropped because pool was full
+	 */
+	public long getDiscarded() {
+		return discarded.sum();
+	}
+
+	/**
+	 * @return pooled buffers acquired and not yet released
+	 */
+	public long getOutstanding() {
+		return outstanding.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "TransferBufferPool [allocations=" + getAllocations() + ", allocatedBytes=" + getAllocatedBytes()
+				+ ", allocatedHeapBytes=" + getAllocatedHeapBytes() + ", threadCacheHits=" + getThreadCacheHits() + ", sharedHits=" + getSharedHits() + ", unpooled="
+				+ getUnpooled() + ", discarded=" + getDiscarded() + ", outstanding=" + getOutstanding() + "]";
+	}
+}
@@ -0,0 +1,135 @@
+package libs.aws.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.AccessControlList;
+import com.amazonaws.services.s3.model.BucketAccelerateConfiguration;
+import com.amazonaws.services.s3.model.BucketAccelerateStatus;
+import com.amazonaws.services.s3.model.BucketCrossOriginConfiguration;
+import com.amazonaws.services.s3.model.BucketLifecycleConfiguration;
+import com.amazonaws.services.s3.model.BucketVersioningConfiguration;
+import com.amazonaws.services.s3.model.CanonicalGrantee;
+import com.amazonaws.services.s3.model.EmailAddressGrantee;
+import com.amazonaws.services.s3.model.Grantee;
+import com.amazonaws.services.s3.model.Owner;
+import com.amazonaws.services.s3.model.Permission;
+import com.amazonaws.services.s3.model.SetBucketAclRequest;
+
+import libs.aws.s3.S3BucketConfig.Setting;
+
+/**
+ * Tests {@link S3BucketConfigEngine} against in memory buckets
+ *
+ * @author Kuldeep
+ *
+ */
+public class S3BucketConfigEngineTest {
+
+	private final static String OWNER_ID = "owner-id";
+
+	@Test
+	public void matchingCanonicalAclHasNoChange() {
+		FakeS3 s3 = new FakeS3();
+		S3BucketConfigEngine engine = new S3BucketConfigEngine(2, 1000);
+		engine.snapshot(s3, Arrays.asList("a", "b"));
+
+		S3BucketConfig desired = new S3BucketConfig();
+		desired.setAcl(acl(new CanonicalGrantee(OWNER_ID)));
+		assertTrue(engine.diff(desired, Arrays.asList("a", "b")).isEmpty());
+
+		desired.setAcl(acl(new CanonicalGrantee("other-id")));
+		List<S3BucketConfigChange> changes = engine.diff(desired, Arrays.asList("a", "b"));
+		assertEquals(2, changes.size());
+		assertTrue(engine.apply(s3, changes).isEmpty());
+		assertEquals(2, s3.writes.get());
+		assertTrue(engine.diff(desired, Arrays.asList("a", "b")).isEmpty());
+	}
+
+	@Test
+	public void diffRejectsEmailGrantee() {
+		FakeS3 s3 = new FakeS3();
+		S3BucketConfigEngine engine = new S3BucketConfigEngine(2, 1000);
+		engine.snapshot(s3, Collections.singletonList("a"));
+		S3BucketConfig desired = new S3BucketConfig();
+		desired.setAcl(acl(new EmailAddressGrantee("owner@example.com")));
+		try {
+			engine.diff(desired, Collections.singletonList("a"));
+			fail("email grantee never matches ACL returned by S3");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void applyWithoutSnapshotWritesNothing() {
+		FakeS3 s3 = new FakeS3();
+		S3BucketConfigEngine engine = new S3BucketConfigEngine(2, 1000);
+		engine.snapshot(s3, Collections.singletonList("a"));
+		AccessControlList acl = acl(new CanonicalGrantee("other-id"));
+		try {
+			engine.apply(s3, Arrays.asList(new S3BucketConfigChange("a", Setting.ACL, acl),
+					new S3BucketConfigChange("unknown", Setting.ACL, acl)));
+			fail("bucket without snapshot");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertEquals(0, s3.writes.get());
+	}
+
+	private static AccessControlList acl(Grantee grantee) {
+		AccessControlList acl = new AccessControlList();
+		acl.setOwner(new Owner(OWNER_ID, "owner"));
+		acl.grantPermission(grantee, Permission.FullControl);
+		return acl;
+	}
+
+	/**
+	 * Every bucket has owner full control ACL and no other configuration,
+	 * counts ACL writes
+	 */
+	private static class FakeS3 extends AbstractAmazonS3 {
+
+		private final AtomicInteger writes = new AtomicInteger();
+
+		@Override
+		public AccessControlList getBucketAcl(String bucketName) {
+			return acl(new CanonicalGrantee(OWNER_ID));
+		}
+
+		@Override
+		public void setBucketAcl(SetBucketAclRequest request) {
+			writes.incrementAndGet();
+		}
+
+		@Override
+		public BucketCrossOriginConfiguration getBucketCrossOriginConfiguration(String bucketName) {
+			return null;
+		}
+
+		@Override
+		public BucketLifecycleConfiguration getBucketLifecycleConfiguration(String bucketName) {
+			return null;
+		}
+
+		@Override
+		public BucketVersioningConfiguration getBucketVersioningConfiguration(String bucketName) {
+			return new BucketVersioningConfiguration(BucketVersioningConfiguration.OFF);
+		}
+
+		@Override
+		public BucketAccelerateConfiguration getBucketAccelerateConfiguration(String bucketName) {
+			return new BucketAccelerateConfiguration(BucketAccelerateStatus.Suspended);
+		}
+	}
+
+}
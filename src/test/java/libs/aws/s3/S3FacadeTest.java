@@ -0,0 +1,201 @@
+package libs.aws.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+
+/**
+ * Tests single flight downloads of
+ * {@link S3Facade#getObject(com.amazonaws.services.s3.AmazonS3, String, String, String, File)}
+ *
+ * @author Kuldeep
+ *
+ */
+public class S3FacadeTest {
+
+	private final static String BUCKET = "bucket";
+
+	private final static int CALLERS = 8;
+
+	private final static byte[] CONTENT = "shared object content".getBytes(StandardCharsets.UTF_8);
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void concurrentCallersShareOneGet() throws Exception {
+		final BlockingS3 s3 = new BlockingS3(CONTENT.length);
+		final AtomicReferenceArray<S3DataWithMetaDataResponse> responses = //
+				new AtomicReferenceArray<S3DataWithMetaDataResponse>(CALLERS);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < CALLERS; i++) {
+			final int caller = i;
+			threads.add(new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						responses.set(caller, S3Facade.instance().getObject(s3, BUCKET, "key", null, null));
+					} catch (Exception e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			}));
+		}
+		run(s3, threads);
+
+		assertEquals(1, s3.gets.get());
+		for (int i = 0; i < CALLERS; i++) {
+			assertFalse(responses.get(i).getDataResponse().isResponseStoredToFile());
+			// every caller reads whole content, position of one doesn't move
+			// others
+			ByteBuffer content = responses.get(i).getDataResponse().getContent();
+			byte[] bytes = new byte[content.remaining()];
+			content.get(bytes);
+			assertEquals(new String(CONTENT, StandardCharsets.UTF_8), new String(bytes, StandardCharsets.UTF_8));
+			if (i > 0) {
+				assertNotSame(responses.get(i - 1).getDataResponse(), responses.get(i).getDataResponse());
+			}
+		}
+	}
+
+	@Test
+	public void everyDestinationIsWritten() throws Exception {
+		// huge content length forces download to file
+		final BlockingS3 s3 = new BlockingS3(Long.MAX_VALUE / 2);
+		final File[] destinations = new File[CALLERS];
+		final AtomicReferenceArray<S3DataWithMetaDataResponse> responses = //
+				new AtomicReferenceArray<S3DataWithMetaDataResponse>(CALLERS);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < CALLERS; i++) {
+			final int caller = i;
+			// two callers per destination
+			destinations[i] = i % 2 == 0 ? folder.newFile() : destinations[i - 1];
+			threads.add(new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						responses.set(caller,
+								S3Facade.instance().getObject(s3, BUCKET, "key", null, destinations[caller]));
+					} catch (Exception e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			}));
+		}
+		run(s3, threads);
+
+		assertEquals(CALLERS / 2, s3.gets.get());
+		for (int i = 0; i < CALLERS; i++) {
+			S3DataResponse data = responses.get(i).getDataResponse();
+			assertTrue(data.isResponseStoredToFile());
+			assertNull(data.getContent());
+			assertEquals(destinations[i], data.getFile());
+			assertEquals(new String(CONTENT, StandardCharsets.UTF_8),
+					new String(Files.readAllBytes(destinations[i].toPath()), StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * Starts callers, lets transfers go once every caller is blocked (in
+	 * transfer or waiting for a shared one) and waits for all
+	 */
+	private static void run(BlockingS3 s3, List<Thread> threads) throws InterruptedException {
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!allWaiting(threads) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertTrue("callers not blocked", allWaiting(threads));
+		s3.release.countDown();
+		for (Thread thread : threads) {
+			thread.join(5000);
+			assertFalse(thread.isAlive());
+		}
+	}
+
+	private static boolean allWaiting(List<Thread> threads) {
+		for (Thread thread : threads) {
+			if (thread.getState() != Thread.State.WAITING) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Serves one object, meta data requests wait till released
+	 */
+	private static class BlockingS3 extends AbstractAmazonS3 {
+
+		/**
+		 * Content length reported by meta data, decides memory or file
+		 * download
+		 */
+		private final long reportedLength;
+
+		private final CountDownLatch release = new CountDownLatch(1);
+
+		private final AtomicInteger gets = new AtomicInteger();
+
+		BlockingS3(long reportedLength) {
+			this.reportedLength = reportedLength;
+		}
+
+		@Override
+		public ObjectMetadata getObjectMetadata(String bucketName, String key) {
+			return getObjectMetadata(new GetObjectMetadataRequest(bucketName, key));
+		}
+
+		@Override
+		public ObjectMetadata getObjectMetadata(GetObjectMetadataRequest request) {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new AmazonClientException(e);
+			}
+			ObjectMetadata metaData = new ObjectMetadata();
+			metaData.setContentLength(reportedLength);
+			return metaData;
+		}
+
+		@Override
+		public S3Object getObject(GetObjectRequest request) {
+			gets.incrementAndGet();
+			S3Object object = new S3Object();
+			object.setBucketName(request.getBucketName());
+			object.setKey(request.getKey());
+			object.getObjectMetadata().setContentLength(CONTENT.length);
+			object.setObjectContent(new ByteArrayInputStream(CONTENT));
+			return object;
+		}
+	}
+
+}
@@ -0,0 +1,70 @@
+package libs.aws.s3;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.amazonaws.services.s3.model.BucketLifecycleConfiguration;
+import com.amazonaws.services.s3.model.BucketLifecycleConfiguration.Rule;
+
+/**
+ * Tests prefix rules proposed by {@link S3LifecycleAdvisor}
+ *
+ * @author Kuldeep
+ *
+ */
+public class S3LifecycleAdvisorTest {
+
+	private final static long MB = 1024 * 1024;
+
+	private final static Date OLD = new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(400));
+
+	@Test
+	public void parentRuleCountsChildPrefixes() {
+		S3LifecycleAdvisor advisor = new S3LifecycleAdvisor(2, 1000);
+		// parent alone is too small for a rule, with child it is not
+		addObjects(advisor, "logs/", 100, MB);
+		addObjects(advisor, "logs/2018/", 2000, MB);
+		assertEquals(Arrays.asList("advisor prefix logs/"), ruleIds(advisor.proposeConfiguration()));
+	}
+
+	@Test
+	public void noParentRuleOverSmallObjectChild() {
+		S3LifecycleAdvisor advisor = new S3LifecycleAdvisor(2, 1000);
+		addObjects(advisor, "logs/", 2000, MB);
+		// too small for IA/Glacier, parent rule would move them as well
+		addObjects(advisor, "logs/thumbs/", 20000, 10 * 1024);
+		addObjects(advisor, "logs/2018/", 2000, MB);
+		assertEquals(Arrays.asList("advisor prefix logs/2018/"), ruleIds(advisor.proposeConfiguration()));
+	}
+
+	@Test
+	public void childRuleSkippedWhenParentCovers() {
+		S3LifecycleAdvisor advisor = new S3LifecycleAdvisor(2, 1000);
+		addObjects(advisor, "data/", 2000, MB);
+		addObjects(advisor, "data/2018/", 2000, MB);
+		addObjects(advisor, "other/", 2000, MB);
+		assertEquals(Arrays.asList("advisor prefix data/", "advisor prefix other/"),
+				ruleIds(advisor.proposeConfiguration()));
+	}
+
+	private static void addObjects(S3LifecycleAdvisor advisor, String prefix, int count, long size) {
+		for (int i = 0; i < count; i++) {
+			advisor.add(prefix + i, size, OLD, null, null);
+		}
+	}
+
+	private static List<String> ruleIds(BucketLifecycleConfiguration configuration) {
+		List<String> ids = new ArrayList<String>();
+		for (Rule rule : configuration.getRules()) {
+			ids.add(rule.getId());
+		}
+		return ids;
+	}
+}
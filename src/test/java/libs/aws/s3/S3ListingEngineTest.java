@@ -0,0 +1,361 @@
+package libs.aws.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * Tests {@link S3ListingEngine} against in memory bucket
+ *
+ * @author Kuldeep
+ *
+ */
+public class S3ListingEngineTest {
+
+	private final static String BUCKET = "bucket";
+
+	private final static Comparator<String> KEY_ORDER = new Comparator<String>() {
+
+		@Override
+		public int compare(String a, String b) {
+			return S3ListingEngine.compareKeys(a, b);
+		}
+	};
+
+	@Test
+	public void compareKeysUsesCodePointOrder() {
+		assertTrue(S3ListingEngine.compareKeys("a", "b") < 0);
+		assertTrue(S3ListingEngine.compareKeys("a", "a/") < 0);
+		assertTrue(S3ListingEngine.compareKeys("a/b", "a") > 0);
+		assertEquals(0, S3ListingEngine.compareKeys("a/b", "a/b"));
+		// U+1F600 is encoded as surrogate pair, String.compareTo puts it before
+		// U+FFFD but S3 (UTF-8) puts it after
+		String emoji = new String(Character.toChars(0x1F600));
+		assertTrue(emoji.compareTo("\uFFFD") < 0);
+		assertTrue(S3ListingEngine.compareKeys(emoji, "\uFFFD") > 0);
+		assertTrue(S3ListingEngine.compareKeys("\uFFFD", emoji) < 0);
+	}
+
+	@Test
+	public void splitPointsAreSortedAndUnique() {
+		InMemoryS3 s3 = new InMemoryS3(randomKeys(5000, ""));
+		List<String> points = new S3ListingEngine(4, 400, 10).splitPoints(s3, BUCKET, null);
+		assertTrue(points.size() > 1);
+		for (int i = 1; i < points.size(); i++) {
+			assertTrue(points.get(i - 1) + " < " + points.get(i),
+					S3ListingEngine.compareKeys(points.get(i - 1), points.get(i)) < 0);
+		}
+	}
+
+	@Test
+	public void orderedListingIsCompleteAndSorted() {
+		TreeSet<String> keys = mixedKeys();
+		InMemoryS3 s3 = new InMemoryS3(keys);
+		S3ListingIterator iterator = new S3ListingEngine(4, 400, 10).list(s3, BUCKET, null, true);
+		List<String> listed = new ArrayList<String>();
+		while (iterator.hasNext()) {
+			listed.add(iterator.next().getKey());
+		}
+		assertEquals(new ArrayList<String>(keys), listed);
+	}
+
+	@Test
+	public void unorderedListingIsCompleteWithoutDuplicates() {
+		TreeSet<String> keys = mixedKeys();
+		InMemoryS3 s3 = new InMemoryS3(keys);
+		S3ListingIterator iterator = new S3ListingEngine(4, 400, 10).list(s3, BUCKET, null, false);
+		List<String> listed = new ArrayList<String>();
+		while (iterator.hasNext()) {
+			listed.add(iterator.next().getKey());
+		}
+		assertEquals(keys.size(), listed.size());
+		assertEquals(keys.size(), new HashSet<String>(listed).size());
+		Collections.sort(listed, KEY_ORDER);
+		assertEquals(new ArrayList<String>(keys), listed);
+	}
+
+	@Test
+	public void listingHonoursPrefix() {
+		TreeSet<String> keys = mixedKeys();
+		InMemoryS3 s3 = new InMemoryS3(keys);
+		S3ListingIterator iterator = new S3ListingEngine(4, 400, 10).list(s3, BUCKET, "folder-1/", true);
+		List<String> listed = new ArrayList<String>();
+		while (iterator.hasNext()) {
+			listed.add(iterator.next().getKey());
+		}
+		List<String> expected = new ArrayList<String>();
+		for (String key : keys) {
+			if (key.startsWith("folder-1/")) {
+				expected.add(key);
+			}
+		}
+		assertFalse(expected.isEmpty());
+		assertEquals(expected, listed);
+	}
+
+	@Test
+	public void bigFolderNextToSmallFoldersIsSplit() {
+		int threads = 4;
+		TreeSet<String> keys = new TreeSet<String>(KEY_ORDER);
+		for (int folder = 0; folder < 64; folder++) {
+			keys.addAll(randomKeys(5, String.format("s%02d/", folder)));
+		}
+		keys.addAll(randomKeys(20000, "big/"));
+		InMemoryS3 s3 = new InMemoryS3(keys);
+		S3ListingEngine engine = new S3ListingEngine(threads, 400, 10);
+		List<String> splitPoints = engine.splitPoints(s3, BUCKET, null);
+		assertTrue("largest shard " + largestShard(keys, splitPoints),
+				largestShard(keys, splitPoints) <= keys.size() / threads);
+		assertEquals(new ArrayList<String>(keys), listAll(engine, s3, true));
+	}
+
+	@Test
+	public void foldersBeyondDiscoveryAreSplit() {
+		int threads = 4;
+		TreeSet<String> keys = new TreeSet<String>(KEY_ORDER);
+		for (int folder = 0; folder < 10000; folder++) {
+			keys.add(String.format("folder%04d/a", folder));
+			keys.add(String.format("folder%04d/b", folder));
+		}
+		InMemoryS3 s3 = new InMemoryS3(keys);
+		// discovery sees only first 1000 folders
+		S3ListingEngine engine = new S3ListingEngine(threads, 400, 1);
+		List<String> splitPoints = engine.splitPoints(s3, BUCKET, null);
+		assertTrue("largest shard " + largestShard(keys, splitPoints),
+				largestShard(keys, splitPoints) <= keys.size() / threads);
+		assertEquals(new ArrayList<String>(keys), listAll(engine, s3, true));
+	}
+
+	@Test
+	public void bigFlatPrefixIsSplit() {
+		int threads = 4;
+		TreeSet<String> keys = randomKeys(50000, "data/");
+		InMemoryS3 s3 = new InMemoryS3(keys);
+		S3ListingEngine engine = new S3ListingEngine(threads, 400, 10);
+		List<String> splitPoints = engine.splitPoints(s3, BUCKET, "data/");
+		assertTrue("largest shard " + largestShard(keys, splitPoints),
+				largestShard(keys, splitPoints) <= keys.size() / threads);
+	}
+
+	@Test
+	public void orderedListingStartsShardsWithinWindow() throws InterruptedException {
+		int threads = 4;
+		int queueCapacity = 400;
+		// many small folders (shards), every shard fits in its queue so
+		// workers complete shards without waiting for reader
+		TreeSet<String> keys = new TreeSet<String>(KEY_ORDER);
+		for (int folder = 0; folder < 200; folder++) {
+			keys.addAll(randomKeys(80, String.format("f%03d/", folder)));
+		}
+		InMemoryS3 s3 = new InMemoryS3(keys);
+		S3ListingEngine engine = new S3ListingEngine(threads, queueCapacity, 10);
+		List<String> splitPoints = engine.splitPoints(s3, BUCKET, null);
+		S3ListingIterator iterator = engine.list(s3, BUCKET, null, true);
+		try {
+			assertTrue(iterator.getShardCount() > threads);
+			String key = iterator.next().getKey();
+			// shards are started only within window of shard being read
+			awaitStable(s3.listed);
+			assertTrue("started " + s3.shardsStarted.get(),
+					s3.shardsStarted.get() <= shardOf(key, splitPoints) + threads);
+
+			// window moves with reader
+			for (int i = 0; i < 3000; i++) {
+				key = iterator.next().getKey();
+			}
+			awaitStable(s3.listed);
+			assertTrue("started " + s3.shardsStarted.get(),
+					s3.shardsStarted.get() <= shardOf(key, splitPoints) + threads);
+		} finally {
+			iterator.close();
+		}
+	}
+
+	@Test
+	public void closeStopsWorkers() throws InterruptedException {
+		InMemoryS3 s3 = new InMemoryS3(randomKeys(100000, ""));
+		S3ListingIterator iterator = new S3ListingEngine(4, 400, 10).list(s3, BUCKET, null, false);
+		iterator.next();
+		iterator.close();
+		long fetched = awaitStable(s3.listed);
+		assertTrue(fetched < 100000);
+		assertFalse(iterator.hasNext());
+	}
+
+	private static List<String> listAll(S3ListingEngine engine, InMemoryS3 s3, boolean ordered) {
+		S3ListingIterator iterator = engine.list(s3, BUCKET, null, ordered);
+		List<String> listed = new ArrayList<String>();
+		while (iterator.hasNext()) {
+			listed.add(iterator.next().getKey());
+		}
+		return listed;
+	}
+
+	/**
+	 * @return number of keys in biggest shard
+	 */
+	private static int largestShard(TreeSet<String> keys, List<String> splitPoints) {
+		int[] counts = new int[splitPoints.size() + 1];
+		for (String key : keys) {
+			counts[shardOf(key, splitPoints)]++;
+		}
+		int largest = 0;
+		for (int count : counts) {
+			largest = Math.max(largest, count);
+		}
+		return largest;
+	}
+
+	/**
+	 * @return index of shard which contains key
+	 */
+	private static int shardOf(String key, List<String> splitPoints) {
+		int shard = 0;
+		while (shard < splitPoints.size() && S3ListingEngine.compareKeys(splitPoints.get(shard), key) < 0) {
+			shard++;
+		}
+		return shard;
+	}
+
+	/**
+	 * Waits till workers stop fetching keys (blocked on full queue or window)
+	 */
+	private static long awaitStable(AtomicLong counter) throws InterruptedException {
+		long last = -1;
+		while (last != counter.get()) {
+			last = counter.get();
+			Thread.sleep(200);
+		}
+		return last;
+	}
+
+	/**
+	 * Keys in folders, at root, with characters outside split characters and
+	 * outside BMP
+	 */
+	private static TreeSet<String> mixedKeys() {
+		TreeSet<String> keys = new TreeSet<String>(KEY_ORDER);
+		for (int folder = 0; folder < 5; folder++) {
+			keys.addAll(randomKeys(1500, "folder-" + folder + "/"));
+		}
+		keys.addAll(randomKeys(3000, ""));
+		keys.add("!first");
+		keys.add("~last");
+		keys.add("folder-1");
+		keys.add("folder-1/");
+		keys.add("\u00e9t\u00e9");
+		keys.add("\uFFFDkey");
+		keys.add(new String(Character.toChars(0x1F600)) + "key");
+		return keys;
+	}
+
+	private static TreeSet<String> randomKeys(int count, String prefix) {
+		String characters = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz-_.";
+		Random random = new Random(count + prefix.hashCode());
+		TreeSet<String> keys = new TreeSet<String>(KEY_ORDER);
+		while (keys.size() < count) {
+			StringBuilder key = new StringBuilder(prefix);
+			for (int i = 0; i < 12; i++) {
+				key.append(characters.charAt(random.nextInt(characters.length())));
+			}
+			keys.add(key.toString());
+		}
+		return keys;
+	}
+
+	/**
+	 * Bucket in memory, supports ListObjectsV2 with prefix, delimiter,
+	 * start-after, continuation token and max keys
+	 */
+	private static class InMemoryS3 extends AbstractAmazonS3 {
+
+		private final NavigableSet<String> keys;
+
+		/**
+		 * Summaries returned by non delimiter listings
+		 */
+		private final AtomicLong listed = new AtomicLong();
+
+		/**
+		 * First page requests of non delimiter listings
+		 */
+		private final AtomicLong shardsStarted = new AtomicLong();
+
+		InMemoryS3(Set<String> keys) {
+			this.keys = new TreeSet<String>(KEY_ORDER);
+			this.keys.addAll(keys);
+		}
+
+		@Override
+		public ListObjectsV2Result listObjectsV2(ListObjectsV2Request request) {
+			String prefix = request.getPrefix() == null ? "" : request.getPrefix();
+			String delimiter = request.getDelimiter();
+			int maxKeys = request.getMaxKeys() == null ? 1000 : request.getMaxKeys();
+			// continuation token is last key (or common prefix) returned
+			if (delimiter == null && request.getContinuationToken() == null) {
+				shardsStarted.incrementAndGet();
+			}
+			String after = request.getContinuationToken() != null ? request.getContinuationToken()
+					: request.getStartAfter();
+			NavigableSet<String> candidates = after == null ? keys : keys.tailSet(after, false);
+
+			ListObjectsV2Result result = new ListObjectsV2Result();
+			result.setBucketName(request.getBucketName());
+			result.setPrefix(request.getPrefix());
+			String last = null;
+			int count = 0;
+			for (String key : candidates) {
+				if (!key.startsWith(prefix)) {
+					if (S3ListingEngine.compareKeys(key, prefix) > 0) {
+						break;
+					}
+					continue;
+				}
+				if (last != null && delimiter != null && last.endsWith(delimiter) && key.startsWith(last)) {
+					continue; // rolled up in common prefix
+				}
+				if (count == maxKeys) {
+					result.setTruncated(true);
+					result.setNextContinuationToken(last);
+					break;
+				}
+				int index = delimiter == null ? -1 : key.indexOf(delimiter, prefix.length());
+				if (index >= 0) {
+					last = key.substring(0, index + delimiter.length());
+					result.getCommonPrefixes().add(last);
+				} else {
+					last = key;
+					S3ObjectSummary summary = new S3ObjectSummary();
+					summary.setBucketName(request.getBucketName());
+					summary.setKey(key);
+					result.getObjectSummaries().add(summary);
+					if (delimiter == null) {
+						listed.incrementAndGet();
+					}
+				}
+				count++;
+			}
+			result.setKeyCount(count);
+			return result;
+		}
+	}
+
+}
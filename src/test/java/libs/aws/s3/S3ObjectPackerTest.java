@@ -0,0 +1,271 @@
+package libs.aws.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * Packs files with {@link S3ObjectPacker} and reads them back with
+ * {@link S3PackReader} from in memory bucket
+ *
+ * @author Kuldeep
+ *
+ */
+public class S3ObjectPackerTest {
+
+	private final static String BUCKET = "bucket";
+
+	private final static String PREFIX = "packs/";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void packedFilesAreReadBack() throws Exception {
+		InMemoryS3 s3 = new InMemoryS3();
+		S3ObjectPacker packer = new S3ObjectPacker(s3, BUCKET, PREFIX, 100, 1024 * 1024);
+		assertTrue(packer.add("a/one", file("first")));
+		assertTrue(packer.add("a/two", file("second file")));
+		assertTrue(packer.add("b/three \u00e9", file("third")));
+		assertFalse(packer.add("big", file(new String(new char[200]).replace('\0', 'x'))));
+		packer.close();
+
+		assertEquals(3, s3.objects.size()); // container, index and big file
+		assertTrue(s3.objects.containsKey("big"));
+
+		S3PackReader reader = new S3PackReader(BUCKET, PREFIX);
+		assertEquals("first", string(reader.getObject(s3, "a/one")));
+		assertEquals("second file", string(reader.getObject(s3, "a/two")));
+		assertEquals("third", string(reader.getObject(s3, "b/three \u00e9")));
+		assertFalse(reader.isPacked(s3, "big"));
+		assertNull(reader.getObject(s3, "missing"));
+
+		ByteBuffer destination = ByteBuffer.allocateDirect(20);
+		assertEquals(11, reader.readObject(s3, "a/two", destination));
+		destination.flip();
+		assertEquals("second file", string(destination));
+	}
+
+	@Test
+	public void fullContainerIsUploaded() throws Exception {
+		InMemoryS3 s3 = new InMemoryS3();
+		S3ObjectPacker packer = new S3ObjectPacker(s3, BUCKET, PREFIX, 100, 10);
+		packer.add("one", file("0123456789"));
+		packer.add("two", file("abcdefghij"));
+		assertEquals(4, s3.objects.size()); // two containers and indexes, without close
+
+		S3PackReader reader = new S3PackReader(BUCKET, PREFIX);
+		assertEquals("0123456789", string(reader.getObject(s3, "one")));
+		assertEquals("abcdefghij", string(reader.getObject(s3, "two")));
+		packer.close();
+		assertEquals(4, s3.objects.size());
+	}
+
+	@Test
+	public void duplicateKeyReadsNewestIndex() throws Exception {
+		InMemoryS3 s3 = new InMemoryS3();
+		S3ObjectPacker packer = new S3ObjectPacker(s3, BUCKET, PREFIX, 100, 1024 * 1024);
+		for (int i = 0; i < 5; i++) {
+			packer.add("same", file("version " + i));
+			packer.add("other " + i, file("other"));
+			packer.flush();
+		}
+		S3PackReader reader = new S3PackReader(BUCKET, PREFIX);
+		assertEquals("version 4", string(reader.getObject(s3, "same")));
+		assertEquals("other", string(reader.getObject(s3, "other 0")));
+
+		// container of a later run is found after reload interval only, a
+		// new reader sees it at once
+		packer.add("same", file("version 5"));
+		packer.close();
+		assertEquals("version 5", string(new S3PackReader(BUCKET, PREFIX).getObject(s3, "same")));
+	}
+
+	@Test
+	public void bigUploadDoesNotBlockPacking() throws Exception {
+		final InMemoryS3 s3 = new InMemoryS3();
+		final S3ObjectPacker packer = new S3ObjectPacker(s3, BUCKET, PREFIX, 100, 1024 * 1024);
+		final File big = file(new String(new char[200]).replace('\0', 'x'));
+		final File small = file("small");
+		s3.blockedKey = "big";
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Future<Boolean> bigAdd = executor.submit(new Callable<Boolean>() {
+
+				@Override
+				public Boolean call() throws Exception {
+					return packer.add("big", big);
+				}
+			});
+			assertTrue(s3.blockedStarted.await(5, TimeUnit.SECONDS));
+			Future<Boolean> smallAdd = executor.submit(new Callable<Boolean>() {
+
+				@Override
+				public Boolean call() throws Exception {
+					return packer.add("small", small);
+				}
+			});
+			// packing must finish while big file upload is still running
+			assertTrue(smallAdd.get(5, TimeUnit.SECONDS));
+			s3.blockedRelease.countDown();
+			assertFalse(bigAdd.get(5, TimeUnit.SECONDS));
+		} finally {
+			s3.blockedRelease.countDown();
+			executor.shutdownNow();
+		}
+		packer.close();
+		assertEquals("small", string(new S3PackReader(BUCKET, PREFIX).getObject(s3, "small")));
+	}
+
+	private File file(String content) throws IOException {
+		File file = folder.newFile();
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+
+	private static String string(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Bucket keeping objects in memory, supports plain puts, ranged gets and
+	 * listing without delimiter roll up (pack keys have no folders)
+	 */
+	private static class InMemoryS3 extends AbstractAmazonS3 {
+
+		private final Map<String, byte[]> objects = new ConcurrentSkipListMap<String, byte[]>();
+
+		private final Map<String, Date> lastModified = new ConcurrentSkipListMap<String, Date>();
+
+		/**
+		 * Last modified of puts, strictly increasing
+		 */
+		private final AtomicLong clock = new AtomicLong(System.currentTimeMillis());
+
+		/**
+		 * Put of this key waits for blockedRelease
+		 */
+		private volatile String blockedKey;
+		private final CountDownLatch blockedStarted = new CountDownLatch(1);
+		private final CountDownLatch blockedRelease = new CountDownLatch(1);
+
+		@Override
+		public PutObjectResult putObject(String bucketName, String key, InputStream input, ObjectMetadata metadata) {
+			if (key.equals(blockedKey)) {
+				blockedStarted.countDown();
+				try {
+					blockedRelease.await();
+				} catch (InterruptedException e) {
+					throw new AmazonClientException(e);
+				}
+			}
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			try {
+				byte[] buffer = new byte[1024];
+				int count;
+				while ((count = input.read(buffer)) >= 0) {
+					content.write(buffer, 0, count);
+				}
+			} catch (IOException e) {
+				throw new AmazonClientException(e);
+			}
+			lastModified.put(key, new Date(clock.incrementAndGet()));
+			objects.put(key, content.toByteArray());
+			return new PutObjectResult();
+		}
+
+		@Override
+		public S3Object getObject(String bucketName, String key) {
+			return getObject(new GetObjectRequest(bucketName, key));
+		}
+
+		@Override
+		public S3Object getObject(GetObjectRequest request) {
+			byte[] content = objects.get(request.getKey());
+			if (content == null) {
+				throw new AmazonClientException("No such key " + request.getKey());
+			}
+			long[] range = request.getRange();
+			if (range != null) {
+				int start = (int) Math.min(range[0], content.length);
+				int end = (int) Math.min(range[1] + 1, content.length);
+				content = Arrays.copyOfRange(content, start, end);
+			}
+			S3Object object = new S3Object();
+			object.setBucketName(request.getBucketName());
+			object.setKey(request.getKey());
+			object.setObjectContent(new ByteArrayInputStream(content));
+			return object;
+		}
+
+		@Override
+		public ListObjectsV2Result listObjectsV2(ListObjectsV2Request request) {
+			String prefix = request.getPrefix() == null ? "" : request.getPrefix();
+			int maxKeys = request.getMaxKeys() == null ? 1000 : request.getMaxKeys();
+			String after = request.getContinuationToken() != null ? request.getContinuationToken()
+					: request.getStartAfter();
+			ListObjectsV2Result result = new ListObjectsV2Result();
+			result.setBucketName(request.getBucketName());
+			result.setPrefix(request.getPrefix());
+			int count = 0;
+			for (Map.Entry<String, byte[]> object : objects.entrySet()) {
+				String key = object.getKey();
+				if (!key.startsWith(prefix) || (after != null && S3ListingEngine.compareKeys(key, after) <= 0)) {
+					continue;
+				}
+				if (count == maxKeys) {
+					result.setTruncated(true);
+					result.setNextContinuationToken(result.getObjectSummaries().get(count - 1).getKey());
+					break;
+				}
+				S3ObjectSummary summary = new S3ObjectSummary();
+				summary.setBucketName(request.getBucketName());
+				summary.setKey(key);
+				summary.setSize(object.getValue().length);
+				summary.setLastModified(lastModified.get(key));
+				result.getObjectSummaries().add(summary);
+				count++;
+			}
+			result.setKeyCount(count);
+			return result;
+		}
+	}
+
+}
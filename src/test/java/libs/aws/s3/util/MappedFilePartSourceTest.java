@@ -0,0 +1,116 @@
+package libs.aws.s3.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests part count, part sizes and part content of
+ * {@link MappedFilePartSource}
+ *
+ * @author Kuldeep
+ *
+ */
+public class MappedFilePartSourceTest {
+
+	private final static int PART_SIZE = 64 * 1024 + 3;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void lastPartIsSmaller() throws IOException {
+		byte[] data = randomBytes(PART_SIZE * 2 + PART_SIZE / 2);
+		try (MappedFilePartSource source = new MappedFilePartSource(write(data), PART_SIZE)) {
+			assertEquals(3, source.getPartCount());
+			assertEquals(PART_SIZE, source.getPartSize(1));
+			assertEquals(PART_SIZE, source.getPartSize(2));
+			assertEquals(PART_SIZE / 2, source.getPartSize(3));
+			assertArrayEquals(data, readParts(source));
+		}
+	}
+
+	@Test
+	public void fileOfWholeParts() throws IOException {
+		byte[] data = randomBytes(PART_SIZE * 3);
+		try (MappedFilePartSource source = new MappedFilePartSource(write(data), PART_SIZE)) {
+			assertEquals(3, source.getPartCount());
+			assertEquals(PART_SIZE, source.getPartSize(3));
+			assertArrayEquals(data, readParts(source));
+		}
+	}
+
+	@Test
+	public void fileSmallerThanPart() throws IOException {
+		byte[] data = randomBytes(10);
+		try (MappedFilePartSource source = new MappedFilePartSource(write(data), PART_SIZE)) {
+			assertEquals(1, source.getPartCount());
+			assertEquals(10, source.getPartSize(1));
+			assertArrayEquals(data, readParts(source));
+		}
+	}
+
+	@Test
+	public void partsCanBeReadOutOfOrderAfterClose() throws IOException {
+		byte[] data = randomBytes(PART_SIZE * 2 + 1);
+		InputStream second;
+		InputStream first;
+		try (MappedFilePartSource source = new MappedFilePartSource(write(data), PART_SIZE)) {
+			second = source.openPart(2);
+			first = source.openPart(1);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		copy(first, out);
+		copy(second, out);
+		byte[] expected = new byte[PART_SIZE * 2];
+		System.arraycopy(data, 0, expected, 0, expected.length);
+		assertArrayEquals(expected, out.toByteArray());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidPartNumber() throws IOException {
+		try (MappedFilePartSource source = new MappedFilePartSource(write(randomBytes(10)), PART_SIZE)) {
+			source.openPart(2);
+		}
+	}
+
+	private File write(byte[] data) throws IOException {
+		File file = folder.newFile();
+		Files.write(file.toPath(), data);
+		return file;
+	}
+
+	private static byte[] randomBytes(int length) {
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		return data;
+	}
+
+	private static byte[] readParts(MappedFilePartSource source) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int part = 1; part <= source.getPartCount(); part++) {
+			try (InputStream in = source.openPart(part)) {
+				copy(in, out);
+			}
+		}
+		return out.toByteArray();
+	}
+
+	private static void copy(InputStream in, ByteArrayOutputStream out) throws IOException {
+		byte[] b = new byte[8192];
+		int read;
+		while ((read = in.read(b)) > 0) {
+			out.write(b, 0, read);
+		}
+	}
+}
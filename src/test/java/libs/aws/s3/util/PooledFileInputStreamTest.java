@@ -0,0 +1,123 @@
+package libs.aws.s3.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests {@link PooledFileInputStream} reads, skip and mark/reset across chunk
+ * boundaries
+ *
+ * @author Kuldeep
+ *
+ */
+public class PooledFileInputStreamTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void readsWholeFile() throws IOException {
+		byte[] data = randomBytes(600 * 1024 + 7);
+		try (InputStream in = new PooledFileInputStream(write(data))) {
+			assertEquals(data.length, in.available());
+			assertArrayEquals(data, readAll(in));
+			assertEquals(-1, in.read());
+		}
+	}
+
+	@Test
+	public void readsEmptyFile() throws IOException {
+		try (InputStream in = new PooledFileInputStream(write(new byte[0]))) {
+			assertEquals(-1, in.read());
+			assertEquals(-1, in.read(new byte[10], 0, 10));
+		}
+	}
+
+	@Test
+	public void skipAndSingleByteRead() throws IOException {
+		byte[] data = randomBytes(600 * 1024);
+		try (InputStream in = new PooledFileInputStream(write(data))) {
+			assertEquals(data[0] & 0xFF, in.read());
+			assertEquals(300 * 1024, in.skip(300 * 1024));
+			assertEquals(data[300 * 1024 + 1] & 0xFF, in.read());
+			assertEquals(data.length - 300 * 1024 - 2, in.skip(Long.MAX_VALUE));
+			assertEquals(-1, in.read());
+		}
+	}
+
+	@Test
+	public void resetGoesBackToMark() throws IOException {
+		byte[] data = randomBytes(600 * 1024);
+		try (InputStream in = new PooledFileInputStream(write(data))) {
+			// mark inside first chunk, reset from next chunk
+			in.skip(100);
+			in.mark(Integer.MAX_VALUE);
+			byte[] first = new byte[400 * 1024];
+			readFully(in, first);
+			in.reset();
+			byte[] second = new byte[400 * 1024];
+			readFully(in, second);
+			assertArrayEquals(first, second);
+			assertArrayEquals(Arrays.copyOfRange(data, 100, 100 + first.length), first);
+
+			// SDK marks before sending and resets on retry
+			in.mark(0);
+			byte[] rest = readAll(in);
+			in.reset();
+			assertArrayEquals(rest, readAll(in));
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void readAfterCloseFails() throws IOException {
+		InputStream in = new PooledFileInputStream(write(randomBytes(10)));
+		in.close();
+		in.close(); // more than once is fine
+		in.read();
+	}
+
+	private File write(byte[] data) throws IOException {
+		File file = folder.newFile();
+		Files.write(file.toPath(), data);
+		return file;
+	}
+
+	private static byte[] randomBytes(int length) {
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		return data;
+	}
+
+	private static void readFully(InputStream in, byte[] b) throws IOException {
+		int offset = 0;
+		while (offset < b.length) {
+			int read = in.read(b, offset, b.length - offset);
+			if (read < 0) {
+				throw new IOException("Unexpected end of stream");
+			}
+			offset += read;
+		}
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] b = new byte[8192];
+		int read;
+		while ((read = in.read(b)) > 0) {
+			out.write(b, 0, read);
+		}
+		return out.toByteArray();
+	}
+}
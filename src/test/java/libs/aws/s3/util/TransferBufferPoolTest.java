@@ -0,0 +1,72 @@
+package libs.aws.s3.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Tests reuse and statistics of {@link TransferBufferPool}
+ *
+ * @author Kuldeep
+ *
+ */
+public class TransferBufferPoolTest {
+
+	private final TransferBufferPool pool = TransferBufferPool.instance();
+
+	@Test
+	public void heapBufferIsReusedAndCounted() {
+		long outstanding = pool.getOutstanding();
+		ByteBuffer buffer = pool.acquireHeap(100 * 1024);
+		assertTrue(buffer.hasArray());
+		assertFalse(buffer.isDirect());
+		assertEquals(256 * 1024, buffer.capacity());
+		assertEquals(outstanding + 1, pool.getOutstanding());
+		buffer.put((byte) 1);
+		pool.release(buffer);
+		assertEquals(outstanding, pool.getOutstanding());
+
+		long hits = pool.getThreadCacheHits();
+		ByteBuffer again = pool.acquireHeap(200 * 1024);
+		assertSame(buffer, again);
+		assertEquals(0, again.position());
+		assertEquals(hits + 1, pool.getThreadCacheHits());
+		pool.release(again);
+	}
+
+	@Test
+	public void heapAndDirectBuffersArePooledSeparately() {
+		ByteBuffer heap = pool.acquireHeap(64 * 1024);
+		pool.release(heap);
+		ByteBuffer direct = pool.acquire(64 * 1024);
+		assertTrue(direct.isDirect());
+		assertNotSame(heap, direct);
+		pool.release(direct);
+		assertSame(heap, pool.acquireHeap(1));
+		pool.release(heap);
+	}
+
+	@Test
+	public void foreignBuffersAreIgnored() {
+		long outstanding = pool.getOutstanding();
+		pool.release(ByteBuffer.allocate(64 * 1024).asReadOnlyBuffer());
+		pool.release(ByteBuffer.allocate(1000));
+		pool.release(null);
+		assertEquals(outstanding, pool.getOutstanding());
+	}
+
+	@Test
+	public void bigRequestIsNotPooled() {
+		long unpooled = pool.getUnpooled();
+		ByteBuffer buffer = pool.acquireHeap(8 * 1024 * 1024);
+		assertEquals(8 * 1024 * 1024, buffer.capacity());
+		assertEquals(unpooled + 1, pool.getUnpooled());
+		pool.release(buffer);
+	}
+}